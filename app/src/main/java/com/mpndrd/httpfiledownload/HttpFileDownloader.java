@@ -1,45 +1,41 @@
 package com.mpndrd.httpfiledownload;
 
-import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
-import com.squareup.okhttp.Interceptor;
-import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
-import com.squareup.okhttp.ResponseBody;
-
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
-
-import okio.Buffer;
-import okio.BufferedSource;
-import okio.ForwardingSource;
-import okio.Okio;
-import okio.Source;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by maxpower on 7/18/2015.
  * <p>
  * this class downloads a file from a given url and saves it to the given absolute location.
- * HttpFileDownloader just wraps the entire AsyncTask call into a single static method that takes
+ * HttpFileDownloader just wraps the entire background download into a single static method that takes
  * a notification interface to the user can provide callback methods. You can think of this as using
  * the wrapper and callback patterns.
  * </p>
  * <p>
- * the inner class:
- * <ul>
- * <li>extends AsyncTask for background work</li>
- * <li>uses the basic run method provided by okhttp tutorial for downloading data.</li>
- * <li>uses the code from the following recipe to add a network interceptor for progress reporting.<br/>
- * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java</li>
- * </ul>
+ * the downloads themselves are done by DownloadEngine, which this class extends, on its own threads,
+ * and the results are posted to the main thread. Configure(), Config, DownloadRequest etc. are
+ * available as HttpFileDownloader.Configure(), HttpFileDownloader.Config, ...
  * </p>
- * <p><strong>notes</strong>: to save a response to file use: responseBody.source().readAll(Okio.sink(file));</p>
  */
-public class HttpFileDownloader {
+public class HttpFileDownloader extends DownloadEngine {
+    static {
+        setPlatform(new AndroidPlatform());
+    }
+
     /**
      * this static methods allows you to download a file to disk
      *
@@ -50,7 +46,7 @@ public class HttpFileDownloader {
     public static void DownloadFile(DownloadStatusListener callback, URL url, String storageFile) {
         // you could pass the information many different ways. the url/storageFile combo could be passed
         // as key-value pari to the execute() method blah blah. this was the easiest way.
-        new DownloadFileTask(callback).execute(new DownloadRequest(url.toString(), storageFile));
+        DownloadFiles(callback, new DownloadRequest(url.toString(), storageFile));
     }
 
     /**
@@ -62,196 +58,206 @@ public class HttpFileDownloader {
     public static void DownloadFiles(DownloadStatusListener callback, DownloadRequest... downloadRequest) {
         // you could pass the information many different ways. the url/storageFile combo could be passed
         // as key-value pari to the execute() method blah blah. this was the easiest way.
-        new DownloadFileTask(callback).execute(downloadRequest);
+        new DownloadBatch(callback, downloadRequest).start();
     }
 
     /**
-     * this class is the asynctask that handles the network read on the background thread. it catches
-     * all exceptions, saves them and pass them to onPostExecution() for reporting.
+     * this class runs a single DownloadFiles call. every DownloadRequest is handed to the shared
+     * DownloadScheduler, which downloads several of them at once on its own threads. nothing waits
+     * for them: the DownloadCallback of the last file to finish completes the batch and posts
+     * OnDownloadDone to the main thread.
      * <p/>
-     * I know doInBackground() takes a DownloadRequest... so we can pass a list of files to download
-     * but for now, this just processes a single request.
+     * submit() blocks while the scheduler's ready queue is full, so the requests are handed over
+     * from one of the engine's background threads, and that thread is free again once they're all
+     * queued. errors for individual files are reported through OnError as they happen, from the
+     * scheduler's worker threads. progress is posted to the main thread.
      */
-    private static class DownloadFileTask extends AsyncTask<DownloadRequest, DownloadProgress, ResponseBundle> {
-        /**
-         * okhttp client used for downloading files
-         */
-        private OkHttpClient client = new OkHttpClient();
+    private static class DownloadBatch implements DownloadCallback {
+        private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 
         /**
          * this is the callback interface used to notify the user
          */
-        private DownloadStatusListener callback = null;
+        private final DownloadStatusListener callback;
 
         /**
          * this is the list of files to be downlaoded
          */
-        private DownloadRequest[] downloadRequests = null;
+        private final DownloadRequest[] downloadRequests;
 
         /**
-         * this is the current file counter
+         * this is the number of files that have been processed so far, successfully or not
          */
-        private int currentFile = 0;  // this var keeps track of current file to be downloaded
+        private final AtomicInteger filesCompleted = new AtomicInteger(0);
 
         /**
-         * constructor requiring a callback
-         *
-         * @param callback
+         * this is the number of files that aren't done yet. the file that takes it to 0 completes the batch
          */
-        public DownloadFileTask(DownloadStatusListener callback) {
-            this.callback = callback;
-        }
+        private final AtomicInteger remaining;
 
         /**
-         * this method processes a single requests. it access class members when needed.
+         * this is the error that stopped the batch before all files were queued, reported instead of
+         * OnDownloadDone
          */
-        public ResponseBundle downloadCurrentFile() throws IOException {
-            final DownloadRequest downloadRequest = downloadRequests[currentFile];
+        private volatile Exception batchError = null;
 
-            Log.d("HttpFileDownloader", "downloadSingleFile - url: " + downloadRequest.URL);
+        /**
+         * these are the files with progress that hasn't been delivered to the callback yet
+         */
+        private final ConcurrentLinkedQueue<FileProgress> updatedFiles = new ConcurrentLinkedQueue<FileProgress>();
 
-            Request request = new Request.Builder()
-                    .url(downloadRequest.URL)
-                    .build();
+        /**
+         * this is set while a progress delivery is waiting to run on the main thread
+         */
+        private final AtomicBoolean deliveryPending = new AtomicBoolean(false);
 
-            Response response = client.newCall(request).execute();
-            Log.d("HttpFileDownloader", "response is: " + ((response == null) ? "null" : "not null"));
+        /**
+         * these are the files of the batch, synced when it's done if Config.syncPolicy is SYNC_BATCH
+         */
+        private final SyncBatch syncBatch = new SyncBatch();
 
-            // this is what saves the body to file
-            response.body().source().readAll(Okio.sink(new File(downloadRequest.storageLocation)));
+        private final Runnable deliverProgress = new Runnable() {
+            @Override
+            public void run() {
+                deliverProgress();
+            }
+        };
 
-            // yes, response.code!=200 isn't an exception. it's an error and it's easier to re-use ResponseBundle
-            if (response.isSuccessful())
-                return new ResponseBundle(true, null);
-            else
-                return new ResponseBundle(false, new Exception("error code: " + response.code()));
+        DownloadBatch(DownloadStatusListener callback, DownloadRequest[] downloadRequests) {
+            this.callback = callback;
+            this.downloadRequests = downloadRequests;
+            this.remaining = new AtomicInteger(downloadRequests == null ? 0 : downloadRequests.length);
         }
 
-        protected ResponseBundle doInBackground(DownloadRequest... reqs) {
-            try {
-                Log.d("HttpFileDownloader", "doInBackground - reqs: " + (reqs == null ? "null" : reqs.length));
-
-                if (reqs == null || reqs.length == 0)
-                    return new ResponseBundle(false, new Exception("no work submitted"));
-
-                downloadRequests = reqs;
-
-                // this listener is for the ProgressResponseBody used in the networkInterceptor.
-                // this interceptor is added once to the client, and uses class member variables for
-                // status updates
-                final ProgressListener listener = new ProgressListener() {
-                    @Override
-                    public void update(long bytesRead, long contentLength, boolean done) {
-                        int prog = (int) (100f * bytesRead / contentLength);
-                        publishProgress(new DownloadProgress(currentFile + 1, downloadRequests.length,
-                                downloadRequests[currentFile].URL, prog, bytesRead, contentLength));
-                    }
-                };
-
-                // create a networkInterceptor
-                client.networkInterceptors().add(new Interceptor() {
-                    @Override
-                    public Response intercept(Chain chain) throws IOException {
-                        Response originalResponse = chain.proceed(chain.request());
-                        return originalResponse.newBuilder()
-                                .body(new ProgressResponseBody(originalResponse.body(), listener))
-                                .build();
-                    }
-                });
-
-                Log.d("HttpFileDownloader", "kicking off requests.... ");
-                ResponseBundle res = null;
-                for (int i = 0; i < downloadRequests.length; i++) {
-                    currentFile = i;
-                    res = downloadCurrentFile();
-
-                    if (res.Status == false && callback != null)
-                        callback.OnError(downloadRequests[i].URL, res.Exception, res.Exception.getMessage());
+        void start() {
+            Log.d("HttpFileDownloader", "DownloadFiles - reqs: " + (downloadRequests == null ? "null" : downloadRequests.length));
+            if (downloadRequests == null || downloadRequests.length == 0) {
+                batchError = new Exception("no work submitted");
+                finish();
+                return;
+            }
+
+            DownloadScheduler.defaultExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    submitAll();
                 }
+            });
+        }
 
-                return new ResponseBundle(true, null);
-            } catch (IOException e) {
-                Log.d("HttpFileDownloader", "IOException - error: " + e.getMessage());
-                e.printStackTrace();
-                return new ResponseBundle(false, e);
-            } catch (Exception e) {
-                Log.d("HttpFileDownloader", "Exception - error: " + e.getMessage());
-                e.printStackTrace();
-                return new ResponseBundle(false, e);
+        private void submitAll() {
+            Log.d("HttpFileDownloader", "kicking off requests.... ");
+            for (int i = 0; i < downloadRequests.length; i++) {
+                try {
+                    submit(downloadRequests[i], new FileProgress(i, downloadRequests[i].URL), syncBatch).addCallback(this);
+                } catch (InterruptedException e) {
+                    Log.d("HttpFileDownloader", "InterruptedException - error: " + e.getMessage());
+                    // the files that weren't queued are done, the batch ends with the error
+                    batchError = e;
+                    if (remaining.addAndGet(-(downloadRequests.length - i)) == 0)
+                        finish();
+                    return;
+                }
             }
         }
 
-        protected void onProgressUpdate(DownloadProgress... progress) {
-            // Log.d("HttpFileDownloader", "onProgressUpdate");
-            if (callback != null)
-                callback.OnProgress(progress[0]);
+        @Override
+        public void onFinished(DownloadRequest downloadRequest, Exception error) {
+            try {
+                if (error != null && callback != null)
+                    callback.OnError(downloadRequest.URL, error, error.getMessage());
+            } finally {
+                filesCompleted.incrementAndGet();
+                if (remaining.decrementAndGet() == 0)
+                    finish();
+            }
         }
 
-        protected void onPostExecute(ResponseBundle result) {
-            // parse the result
-            Log.d("HttpFileDownloader", "onPostExecute. result: " + result.Status);
-
-            // the callback wasn't provide, exit.
-            if (callback == null) return;
+        /**
+         * called once, from the thread of the last file to finish.
+         */
+        private void finish() {
+            try {
+                syncBatch.sync();
+            } catch (IOException e) {
+                Log.d("HttpFileDownloader", "IOException - error: " + e.getMessage());
+                if (batchError == null)
+                    batchError = e;
+            }
 
-            // could also check status==false
-            if (result.Status == true)
-                // make sure to try/catch your OnDownloadDone
-                callback.OnDownloadDone();
-            else
-                callback.OnError("", result.Exception, "error retrieving data");
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // the last progress goes out before the result
+                    deliverProgress();
+                    Log.d("HttpFileDownloader", "batch done. error: " + batchError);
+
+                    // the callback wasn't provide, exit.
+                    if (callback == null) return;
+
+                    if (batchError == null)
+                        // make sure to try/catch your OnDownloadDone
+                        callback.OnDownloadDone();
+                    else
+                        callback.OnError("", batchError, "error retrieving data");
+                }
+            });
         }
-    }
 
-    /**
-     * just a key value pair. sure Map.Entry<K, V> but, meh. also getters, setters, meh. It's a simple
-     * object.
-     */
-    public static class DownloadRequest {
         /**
-         * this is the complete URL for the file to download
+         * this delivers the latest progress of every file that reported since the last delivery. main thread only.
          */
-        public String URL = "";
+        private void deliverProgress() {
+            deliveryPending.set(false);
+
+            FileProgress fileProgress;
+            while ((fileProgress = updatedFiles.poll()) != null) {
+                fileProgress.updated.set(false);
+                if (callback != null)
+                    callback.OnProgress(fileProgress.snapshot());
+            }
+        }
+
         /**
-         * this is the absoluate path for where to store the downloaded file
+         * <p>this is the ProgressListener for a single file. ThrottledProgressListener decides when
+         * to report, and then the file is queued for delivery. deliveries are coalesced:
+         * <ul>
+         * <li>a file is queued at most once until the main thread delivers it, and then the latest
+         * numbers are delivered</li>
+         * <li>there is at most one delivery waiting on the main looper per batch</li>
+         * </ul>
+         * the DownloadProgress handed to OnProgress is reused for the same file, so nothing is
+         * allocated per read or per delivery.
+         * </p>
          */
-        public String storageLocation = "";
+        private class FileProgress extends ThrottledProgressListener {
+            private final DownloadProgress progress;
+            final AtomicBoolean updated = new AtomicBoolean(false);
 
-        public DownloadRequest(String URL, String storageLocation) {
-            this.URL = URL;
-            this.storageLocation = storageLocation;
-        }
-    }
+            FileProgress(int index, String url) {
+                this.progress = new DownloadProgress(index + 1, downloadRequests.length, url, 0, 0, -1, 0);
+            }
 
-    /**
-     * <p>this object represents the download progress being reported.
-     * <ul>
-     * <li>currentFile - this is index of the file being downloaded</li>
-     * <li>totalFiles - this is the number of total files</li>
-     * <li>currentFilename - this is the URL of the current file being downloaded</li>
-     * <li>currentFileBytesRead - this the number of bytes read so far for the current file</li>
-     * <li>currentFileTotalBytes - this is the total length (in bytes) of the current file as
-     * reported by the server</li>
-     * </ul>
-     * </p>
-     */
-    public static class DownloadProgress {
-        public int currentFile = 0;  // current file in list
-        public int totalFiles = 0;   // total files in list
-        public String currentFilename = "";
-        public int currentFileProgress = 0;
-        public long currentFileBytesRead = 0;
-        public long currentFileTotalBytes = 0;
-
-        public DownloadProgress(int currentFile, int totalFiles, String currentFilename,
-                                int currentFileProgress, long currentFileBytesReady,
-                                long currentFileTotalBytes) {
-            this.currentFile = currentFile;
-            this.totalFiles = totalFiles;
-            this.currentFilename = currentFilename;
-            this.currentFileProgress = currentFileProgress;
-            this.currentFileBytesRead = currentFileBytesReady;
-            this.currentFileTotalBytes = currentFileTotalBytes;
+            @Override
+            protected void report() {
+                if (updated.compareAndSet(false, true))
+                    updatedFiles.add(this);
+                if (deliveryPending.compareAndSet(false, true))
+                    mainHandler.post(deliverProgress);
+            }
+
+            /**
+             * @return the DownloadProgress for this file, filled in with the latest numbers. main thread only.
+             */
+            DownloadProgress snapshot() {
+                long bytesRead = bytesRead();
+                long contentLength = contentLength();
+                progress.currentFileBytesRead = bytesRead;
+                progress.currentFileTotalBytes = contentLength;
+                progress.currentFileProgress = contentLength > 0 ? (int) (100 * bytesRead / contentLength) : -1;
+                progress.filesCompleted = filesCompleted.get();
+                return progress;
+            }
         }
     }
 
@@ -302,69 +308,66 @@ public class HttpFileDownloader {
         public void OnProgress(DownloadProgress downloadProgress);
     }
 
-    protected static class ResponseBundle {
-        public Boolean Status = false;
-        public Exception Exception = null;
-
-        public ResponseBundle(Boolean status, Exception e) {
-            this.Status = status;
-            this.Exception = e;
-        }
-    }
-
     /**
-     * this class is implemented per the following recipe. (almost copy)
-     * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java
+     * this is the Platform on android: it logs to logcat, and preallocates files with posix_fallocate
+     * and syncs directories on android 5.0 and up.
      */
-    private static class ProgressResponseBody extends ResponseBody {
-        private final ResponseBody responseBody;
-        private final ProgressListener progressListener;
-        private BufferedSource bufferedSource;
-
-        public ProgressResponseBody(ResponseBody responseBody, ProgressListener progressListener) {
-            this.responseBody = responseBody;
-            this.progressListener = progressListener;
-        }
-
+    private static class AndroidPlatform extends Platform {
         @Override
-        public MediaType contentType() {
-            return responseBody.contentType();
+        protected void log(String message) {
+            Log.d("HttpFileDownloader", message);
         }
 
         @Override
-        public long contentLength() throws IOException {
-            return responseBody.contentLength();
+        protected void preallocate(RandomAccessFile file, long offset, long length) throws IOException {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                return;
+
+            try {
+                Os.posix_fallocate(file.getFD(), offset, length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC)
+                    throw new IOException("not enough space for " + length + " bytes", e);
+                log("preallocate - not supported: " + e.getMessage());
+            }
         }
 
         @Override
-        public BufferedSource source() throws IOException {
-            if (bufferedSource == null) {
-                bufferedSource = Okio.buffer(source(responseBody.source()));
+        protected boolean link(File from, File to) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                return false;
+
+            try {
+                Os.link(from.getPath(), to.getPath());
+                return true;
+            } catch (ErrnoException e) {
+                return false;
             }
-            return bufferedSource;
         }
 
-        private Source source(Source source) {
-            return new ForwardingSource(source) {
-                long totalBytesRead = 0L;
+        @Override
+        protected void syncDirectory(File directory) throws IOException {
+            // java.nio.file is only there from android 8.0
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                return;
 
-                @Override
-                public long read(Buffer sink, long byteCount) throws IOException {
-                    long bytesRead = super.read(sink, byteCount);
-                    totalBytesRead += bytesRead != -1 ? bytesRead : 0;
-                    progressListener.update(totalBytesRead, responseBody.contentLength(), bytesRead == -1);
-                    // Log.d("ProgressResponseBody", "totayBytesRead: " + totalBytesRead + ", length: " + responseBody.contentLength());
-                    return bytesRead;
+            FileDescriptor fd;
+            try {
+                fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            } catch (ErrnoException e) {
+                return;
+            }
+            try {
+                Os.fsync(fd);
+            } catch (ErrnoException e) {
+                throw new IOException("can't sync " + directory, e);
+            } finally {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    // it's synced
                 }
-            };
+            }
         }
     }
-
-    /**
-     * this interface is implemented per the following recipe.
-     * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java
-     */
-    interface ProgressListener {
-        void update(long bytesRead, long contentLength, boolean done);
-    }
 }
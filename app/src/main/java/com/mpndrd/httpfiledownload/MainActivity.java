@@ -81,6 +81,7 @@ public class MainActivity extends AppCompatActivity {
                     new HttpFileDownloader.DownloadStatusListener() {
                         @Override
                         public void OnDownloadDone() {
+                            clearProgress();
                             showStatus("done");
                         }
 
@@ -113,17 +114,18 @@ public class MainActivity extends AppCompatActivity {
         TextView mText3 = (TextView) findViewById(R.id.currentfilename_value);
         TextView mText4 = (TextView) findViewById(R.id.bytesread_value);
 
-        if (downloadProgress.currentFile == downloadProgress.totalFiles && downloadProgress.currentFileProgress == 100) {
-            progressBar.setProgress(0);
-            mText1.setText("");
-            mText3.setText("");
-            mText4.setText("");
-        } else {
-            progressBar.setProgress(downloadProgress.currentFileProgress);
-            mText1.setText(downloadProgress.currentFile + " / " + downloadProgress.totalFiles);
-            mText3.setText(downloadProgress.currentFilename);
-            mText4.setText(downloadProgress.currentFileBytesRead + " / " + downloadProgress.currentFileTotalBytes);
-        }
+        // several files are downloaded at once, so this shows whichever file reported progress last
+        progressBar.setProgress(downloadProgress.currentFileProgress);
+        mText1.setText(downloadProgress.filesCompleted + " / " + downloadProgress.totalFiles);
+        mText3.setText(downloadProgress.currentFilename);
+        mText4.setText(downloadProgress.currentFileBytesRead + " / " + downloadProgress.currentFileTotalBytes);
+    }
+
+    private void clearProgress() {
+        progressBar.setProgress(0);
+        ((TextView) findViewById(R.id.currentfile_value)).setText("");
+        ((TextView) findViewById(R.id.currentfilename_value)).setText("");
+        ((TextView) findViewById(R.id.bytesread_value)).setText("");
     }
 
     private void showStatus(String status) {
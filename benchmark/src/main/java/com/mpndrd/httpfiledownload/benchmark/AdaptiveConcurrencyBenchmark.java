@@ -0,0 +1,92 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this benchmark downloads a batch of files over a shaped network, with a fixed number of
+ * downloads at a time and with the adaptive concurrency controller, to see that the controller
+ * finds a limit as good as the best fixed one on each network:
+ * <ul>
+ * <li>fibre - 5ms latency, 4MB/s per connection, 40MB/s in total: the link is full at about 12
+ * connections</li>
+ * <li>mobile - 100ms latency, 1MB/s per connection, 2MB/s in total: the link is full at about 4
+ * connections, with more the requests only queue up</li>
+ * </ul>
+ * the controller keeps its limit between invocations, the warmup is where it converges. the score
+ * is the time per batch.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AdaptiveConcurrencyBenchmark {
+    static final int FILES = 32;
+    static final int FILE_SIZE = 128 * 1024;
+
+    @Param({"fibre", "mobile"})
+    public String network;
+
+    /**
+     * the fixed limit, or 0 for the controller (up to 32)
+     */
+    @Param({"2", "16", "0"})
+    public int maxConcurrentDownloads;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        boolean adaptive = maxConcurrentDownloads == 0;
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .maxConcurrentDownloads(adaptive ? 32 : maxConcurrentDownloads)
+                .maxDownloadsPerHost(adaptive ? 32 : maxConcurrentDownloads)
+                .maxIdleConnections(32)
+                .adaptiveConcurrency(adaptive ? 200 : 0, TimeUnit.MILLISECONDS)
+                .build());
+        if (network.equals("fibre"))
+            server = new LocalHttpServer(FILE_SIZE, 5, 4 * Benchmarks.MB, 40 * Benchmarks.MB);
+        else
+            server = new LocalHttpServer(FILE_SIZE, 100, Benchmarks.MB, 2 * Benchmarks.MB);
+
+        directory = Benchmarks.createDirectory("adaptive");
+        batch = new DownloadRequest[FILES];
+        for (int i = 0; i < FILES; i++)
+            batch[i] = new DownloadRequest(server.url("/file" + i), new File(directory, "file" + i).getPath());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .adaptiveConcurrency(0, TimeUnit.MILLISECONDS)
+                .build());
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void batch() throws Exception {
+        Benchmarks.downloadAll(batch, null);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.BatchDownload;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this benchmark downloads a batch of small files from a server 50ms away, through the
+ * scheduler and as a BatchDownload:
+ * <ul>
+ * <li>scheduler - a blocking call on a download thread for every file, Config.maxConcurrentDownloads
+ * at a time</li>
+ * <li>batch - an asynchronous call for every file, Config.maxRequestsPerHost at a time</li>
+ * </ul>
+ * with files this small every download is one round trip, so the scheduler's files per second are
+ * about maxConcurrentDownloads / 50ms. the batch keeps MAX_REQUESTS_PER_HOST requests in flight, about
+ * MAX_REQUESTS_PER_HOST / 50ms files per second, until it's held back by the link (10MB/s) instead.
+ * the score is in files per second.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchBenchmark {
+    static final int FILES = 512;
+    static final int FILE_SIZE = 4 * 1024;
+    static final int MAX_REQUESTS_PER_HOST = 64;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .maxRequests(MAX_REQUESTS_PER_HOST)
+                .maxRequestsPerHost(MAX_REQUESTS_PER_HOST)
+                .maxIdleConnections(MAX_REQUESTS_PER_HOST)
+                .build());
+        server = new LocalHttpServer(FILE_SIZE, 50, 0, 10 * Benchmarks.MB);
+        directory = Benchmarks.createDirectory("batch");
+        batch = new DownloadRequest[FILES];
+        for (int i = 0; i < FILES; i++)
+            batch[i] = new DownloadRequest(server.url("/file" + i), new File(directory, "file" + i).getPath());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void scheduler() throws Exception {
+        Benchmarks.downloadAll(batch, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void batch() throws Exception {
+        BatchDownload download = BatchDownload.start(Arrays.asList(batch), null, null);
+        if (!download.await(1, TimeUnit.MINUTES))
+            throw new IOException("batch timed out");
+        if (download.filesFailed() > 0)
+            throw new IOException(download.filesFailed() + " files failed");
+    }
+}
@@ -0,0 +1,47 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadFuture;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+    static final int MB = 1024 * 1024;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * downloads all the files through the scheduler and waits for them, like DownloadFiles() does.
+     * throws the first error, a benchmark that fails to download shouldn't report numbers.
+     */
+    static void downloadAll(DownloadRequest[] requests, ProgressListener listener) throws Exception {
+        DownloadFuture[] futures = new DownloadFuture[requests.length];
+        for (int i = 0; i < requests.length; i++)
+            futures[i] = DownloadEngine.submit(requests[i], listener);
+        for (DownloadFuture future : futures)
+            future.get();
+    }
+
+    static File createDirectory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("can't create " + directory);
+        return directory;
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
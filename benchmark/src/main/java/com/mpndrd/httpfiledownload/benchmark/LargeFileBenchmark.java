@@ -0,0 +1,68 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this benchmark downloads a single large file, where the cost is per byte: reading the
+ * socket, copying into the write buffer and writing the file. one operation is one MB, so
+ * the throughput is in MB per second, and with -prof gc, gc.alloc.rate.norm is the number of bytes
+ * allocated per MB downloaded.
+ * </p>
+ * <p>segments = 1 is the single stream download, more than 1 is the segmented download.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LargeFileBenchmark {
+    static final int SIZE_MB = 64;
+
+    @Param({"1", "4"})
+    public int segments;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] requests;
+
+    @Setup
+    public void setUp() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .segmentsPerFile(segments)
+                .build());
+        server = new LocalHttpServer(SIZE_MB * Benchmarks.MB);
+        directory = Benchmarks.createDirectory("large-file");
+        requests = new DownloadRequest[]{new DownloadRequest(server.url("/large"), new File(directory, "large").getPath())};
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public void download() throws Exception {
+        Benchmarks.downloadAll(requests, null);
+    }
+}
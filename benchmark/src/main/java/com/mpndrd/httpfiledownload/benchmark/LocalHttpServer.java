@@ -0,0 +1,221 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this class is a minimal in-process http/1.1 server for the benchmarks. every path serves the same
+ * random body, with keep-alive, HEAD and single byte ranges, which is all the downloader needs.
+ * </p>
+ * <p>
+ * it can also act like a slow network: every response waits latencyMillis before it's sent, and the
+ * bytes are paced to bytesPerSecondPerConnection on each connection (like a tcp window) and to
+ * bytesPerSecond over all connections (like the bottleneck link). the headers go through the shared
+ * pace too, so with too many connections the time to first byte grows, the way it does when a
+ * router's queue fills up.
+ * </p>
+ * <p>
+ * it's used instead of MockWebServer because MockWebServer copies the whole body for every response,
+ * and the server runs in the same jvm as the downloader: those copies would show up in the
+ * allocation numbers. this server writes straight from one shared array.
+ * </p>
+ */
+final class LocalHttpServer implements Closeable {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final byte[] body;
+    private final long latencyMillis;
+    private final long bytesPerSecondPerConnection;
+    private final Pace linkPace;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LocalHttpServer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    LocalHttpServer(int bodySize) throws IOException {
+        this(bodySize, 0, 0, 0);
+    }
+
+    /**
+     * @param latencyMillis               - the delay before every response, 0 for none
+     * @param bytesPerSecondPerConnection - 0 for unlimited
+     * @param bytesPerSecond              - the limit of all connections together, 0 for unlimited
+     */
+    LocalHttpServer(int bodySize, long latencyMillis, long bytesPerSecondPerConnection, long bytesPerSecond) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecondPerConnection = bytesPerSecondPerConnection;
+        this.linkPace = bytesPerSecond > 0 ? new Pace(bytesPerSecond) : null;
+        body = new byte[bodySize];
+        new Random(0).nextBytes(body);
+        serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * answers requests on the connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            Pace connectionPace = bytesPerSecondPerConnection > 0 ? new Pace(bytesPerSecondPerConnection) : null;
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (!readLine(in, line))
+                    return;
+                boolean head = line.indexOf("HEAD ") == 0;
+
+                String range = null;
+                while (readLine(in, line) && line.length() > 0) {
+                    if (line.length() > 6 && line.substring(0, 6).equalsIgnoreCase("range:"))
+                        range = line.substring(6).trim();
+                }
+
+                long start = 0;
+                long end = body.length - 1;
+                String status = "200 OK";
+                String contentRange = "";
+                if (range != null && range.startsWith("bytes=")) {
+                    int dash = range.indexOf('-');
+                    start = Long.parseLong(range.substring(6, dash));
+                    if (dash < range.length() - 1)
+                        end = Math.min(end, Long.parseLong(range.substring(dash + 1)));
+                    status = "206 Partial Content";
+                    contentRange = "Content-Range: bytes " + start + "-" + end + "/" + body.length + "\r\n";
+                }
+
+                String headers = "HTTP/1.1 " + status + "\r\n"
+                        + "Content-Length: " + (end - start + 1) + "\r\n"
+                        + "Accept-Ranges: bytes\r\n"
+                        + "ETag: \"benchmark\"\r\n"
+                        + contentRange
+                        + "\r\n";
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                byte[] headerBytes = headers.getBytes("US-ASCII");
+                write(out, headerBytes, 0, headerBytes.length, connectionPace);
+                if (!head)
+                    write(out, body, (int) start, (int) (end - start + 1), connectionPace);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * writes the bytes, at the pace of the connection and the link if there are any.
+     */
+    private void write(OutputStream out, byte[] bytes, int offset, int length, Pace connectionPace) throws IOException, InterruptedException {
+        if (connectionPace == null && linkPace == null) {
+            out.write(bytes, offset, length);
+            return;
+        }
+
+        int end = offset + length;
+        while (offset < end) {
+            int chunk = Math.min(CHUNK_SIZE, end - offset);
+            long waitNanos = 0;
+            if (connectionPace != null)
+                waitNanos = connectionPace.reserve(chunk);
+            if (linkPace != null)
+                waitNanos = Math.max(waitNanos, linkPace.reserve(chunk));
+            if (waitNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            out.write(bytes, offset, chunk);
+            out.flush();
+            offset += chunk;
+        }
+    }
+
+    /**
+     * this is a token bucket without a burst: every reserve() moves the time the next byte can be
+     * sent, and returns how long to wait for it.
+     */
+    private static final class Pace {
+        private final long bytesPerSecond;
+        private long next = System.nanoTime();
+
+        Pace(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        synchronized long reserve(int bytes) {
+            long now = System.nanoTime();
+            next = Math.max(next, now) + bytes * 1000000000L / bytesPerSecond;
+            return next - now;
+        }
+    }
+
+    /**
+     * reads a line without the line break into line.
+     *
+     * @return false at the end of the stream
+     */
+    private static boolean readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                return true;
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return false;
+    }
+}
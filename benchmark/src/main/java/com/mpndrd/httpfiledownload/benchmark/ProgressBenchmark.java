@@ -0,0 +1,92 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.ProgressListener;
+import com.mpndrd.httpfiledownload.DownloadEngine.ThrottledProgressListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>this benchmark measures what progress reporting costs on the read path. the same file is
+ * downloaded:
+ * <ul>
+ * <li>none: without a listener, the response body isn't wrapped</li>
+ * <li>noop: with a listener that does nothing, the cost of ProgressResponseBody itself</li>
+ * <li>throttled: with a ThrottledProgressListener, like the one HttpFileDownloader uses</li>
+ * </ul>
+ * one operation is one MB, as in LargeFileBenchmark.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProgressBenchmark {
+    static final int SIZE_MB = 32;
+
+    @Param({"none", "noop", "throttled"})
+    public String listener;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] requests;
+    private ProgressListener progressListener;
+
+    /**
+     * keeps the throttled listener's reports from being optimized away
+     */
+    final AtomicLong reports = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(SIZE_MB * Benchmarks.MB);
+        directory = Benchmarks.createDirectory("progress");
+        requests = new DownloadRequest[]{new DownloadRequest(server.url("/progress"), new File(directory, "progress").getPath())};
+
+        if ("noop".equals(listener)) {
+            progressListener = new ProgressListener() {
+                @Override
+                public void update(long bytesRead, long contentLength, boolean done) {
+                }
+            };
+        } else if ("throttled".equals(listener)) {
+            progressListener = new ThrottledProgressListener() {
+                @Override
+                protected void report() {
+                    reports.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public void download() throws Exception {
+        Benchmarks.downloadAll(requests, progressListener);
+    }
+}
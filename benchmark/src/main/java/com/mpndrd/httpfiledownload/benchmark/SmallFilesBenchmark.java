@@ -0,0 +1,84 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this benchmark downloads many small files, where the cost is per file (scheduling, request and
+ * response headers, opening the file, the journal) rather than per byte.
+ * <ul>
+ * <li>batch: files per second for a batch of FILES files submitted at once</li>
+ * <li>single: the latency of one file, from submit() to the callback</li>
+ * </ul>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SmallFilesBenchmark {
+    static final int FILES = 100;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"4"})
+    public int maxConcurrentDownloads;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] batch;
+    private DownloadRequest[] single;
+
+    @Setup
+    public void setUp() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .maxConcurrentDownloads(maxConcurrentDownloads)
+                .maxDownloadsPerHost(maxConcurrentDownloads)
+                .build());
+        server = new LocalHttpServer(fileSize);
+        directory = Benchmarks.createDirectory("small-files");
+        batch = new DownloadRequest[FILES];
+        for (int i = 0; i < FILES; i++)
+            batch[i] = new DownloadRequest(server.url("/file" + i), new File(directory, "file" + i).getPath());
+        single = new DownloadRequest[]{batch[0]};
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(FILES)
+    public void batch() throws Exception {
+        Benchmarks.downloadAll(batch, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void single() throws Exception {
+        Benchmarks.downloadAll(single, null);
+    }
+}
@@ -0,0 +1,154 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import com.mpndrd.httpfiledownload.DownloadEngine;
+import com.mpndrd.httpfiledownload.BufferPool;
+import com.mpndrd.httpfiledownload.DownloadChannel;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadFuture;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamConsumer;
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>this benchmark gets a large file to code that reads it, in three ways:
+ * <ul>
+ * <li>fileThenRead - downloads the file and reads it back, the only way before StreamRequest</li>
+ * <li>channel - reads a DownloadChannel on the benchmark thread while the file downloads</li>
+ * <li>consumer - a StreamConsumer that reads the bytes on the download thread</li>
+ * </ul>
+ * one operation is one MB, so the throughput is in MB per second. with -prof gc,
+ * gc.alloc.rate.norm is the number of bytes allocated per MB: the streams stay flat however large
+ * the file is, the channel holds at most POOL_BUFFERS * POOL_BUFFER_SIZE bytes.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamingBenchmark {
+    static final int SIZE_MB = 64;
+    static final int POOL_BUFFERS = 4;
+    static final int POOL_BUFFER_SIZE = 64 * 1024;
+
+    private LocalHttpServer server;
+    private File directory;
+    private DownloadRequest[] requests;
+    private BufferPool pool;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(POOL_BUFFER_SIZE);
+
+    @Setup
+    public void setUp() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder()
+                .segmentsPerFile(1)
+                .build());
+        server = new LocalHttpServer(SIZE_MB * Benchmarks.MB);
+        directory = Benchmarks.createDirectory("streaming");
+        requests = new DownloadRequest[]{new DownloadRequest(server.url("/large"), new File(directory, "large").getPath())};
+        pool = new BufferPool(POOL_BUFFERS, POOL_BUFFER_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public long fileThenRead() throws Exception {
+        Benchmarks.downloadAll(requests, null);
+        long sum = 0;
+        RandomAccessFile file = new RandomAccessFile(requests[0].storageLocation, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            while (channel.read(readBuffer) != -1) {
+                readBuffer.flip();
+                sum += checksum(readBuffer);
+                readBuffer.clear();
+            }
+        } finally {
+            file.close();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public long channel() throws Exception {
+        DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(server.url("/large"), channel), null);
+        long sum = 0;
+        try {
+            while (channel.read(readBuffer) != -1) {
+                readBuffer.flip();
+                sum += checksum(readBuffer);
+                readBuffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        future.get();
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public long consumer() throws Exception {
+        final long[] sum = new long[1];
+        StreamConsumer consumer = new StreamConsumer() {
+            @Override
+            public void onStart(long offset, long contentLength) {
+                if (offset == 0)
+                    sum[0] = 0;
+            }
+
+            @Override
+            public void onData(ByteBuffer data) {
+                sum[0] += checksum(data);
+            }
+
+            @Override
+            public void onFinished(Exception error) {
+            }
+        };
+        DownloadEngine.submit(new StreamRequest(server.url("/large"), consumer), null).get();
+        return sum[0];
+    }
+
+    /**
+     * touches every byte, like a parser would.
+     */
+    private static long checksum(ByteBuffer buffer) {
+        long sum = 0;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int end = buffer.arrayOffset() + buffer.position() + buffer.remaining();
+            for (int i = buffer.arrayOffset() + buffer.position(); i < end; i++)
+                sum += array[i];
+        } else {
+            for (int i = buffer.position(); i < buffer.limit(); i++)
+                sum += buffer.get(i);
+        }
+        return sum;
+    }
+}
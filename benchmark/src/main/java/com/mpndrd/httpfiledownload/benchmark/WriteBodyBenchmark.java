@@ -0,0 +1,133 @@
+package com.mpndrd.httpfiledownload.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * <p>this benchmark copies a body from an okio source to a file, the way writeBody() does and the
+ * ways it could, without the network:
+ * <ul>
+ * <li>heap - okio reads into a large array that's written with one positional write when it's
+ * full. this is writeBody(). the jdk copies the array into a temporary direct buffer to write it</li>
+ * <li>direct - okio reads into a small array that's copied into a large direct buffer, which is
+ * written without the jdk's copy</li>
+ * <li>transferFrom - FileChannel.transferFrom() from a channel over the source's InputStream</li>
+ * </ul>
+ * okio 1.x keeps its segments in heap arrays and can't read into a ByteBuffer, so every way
+ * copies each byte twice before the write system call. this measures whether any of them is
+ * cheaper. one operation is one MB, so the throughput is in MB per second.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WriteBodyBenchmark {
+    static final int SIZE_MB = 64;
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    @Param({"heap", "direct", "transferFrom"})
+    public String copy;
+
+    private byte[] body;
+    private File directory;
+    private RandomAccessFile file;
+    private final byte[] batch = new byte[BUFFER_SIZE];
+    private final ByteBuffer batchView = ByteBuffer.wrap(batch);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final ByteBuffer directBatch = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    @Setup
+    public void setUp() throws Exception {
+        body = new byte[SIZE_MB * Benchmarks.MB];
+        new Random(0).nextBytes(body);
+        directory = Benchmarks.createDirectory("write-body");
+        file = new RandomAccessFile(new File(directory, "body"), "rw");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        file.close();
+        Benchmarks.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE_MB)
+    public long write() throws Exception {
+        // a stream source, so okio copies into its segments like it does from a socket
+        BufferedSource source = Okio.buffer(Okio.source(new ByteArrayInputStream(body)));
+        FileChannel channel = file.getChannel();
+        long end;
+        if (copy.equals("heap"))
+            end = heap(source, channel);
+        else if (copy.equals("direct"))
+            end = direct(source, channel);
+        else
+            end = channel.transferFrom(Channels.newChannel(source.inputStream()), 0, Long.MAX_VALUE);
+        if (end != body.length)
+            throw new IOException("wrote " + end + " of " + body.length + " bytes");
+        return end;
+    }
+
+    private long heap(BufferedSource source, FileChannel channel) throws IOException {
+        long position = 0;
+        int filled = 0;
+        int read;
+        while ((read = source.read(batch, filled, batch.length - filled)) != -1) {
+            filled += read;
+            if (filled == batch.length) {
+                position = write(batchView, filled, channel, position);
+                filled = 0;
+            }
+        }
+        return write(batchView, filled, channel, position);
+    }
+
+    private long direct(BufferedSource source, FileChannel channel) throws IOException {
+        long position = 0;
+        directBatch.clear();
+        int read;
+        while ((read = source.read(chunk, 0, Math.min(chunk.length, directBatch.remaining()))) != -1) {
+            directBatch.put(chunk, 0, read);
+            if (!directBatch.hasRemaining())
+                position = write(directBatch, directBatch.position(), channel, position);
+        }
+        return write(directBatch, directBatch.position(), channel, position);
+    }
+
+    private static long write(ByteBuffer buffer, int length, FileChannel channel, long position) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return position;
+    }
+}
@@ -0,0 +1,94 @@
+package com.mpndrd.httpfiledownload;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>this is a fixed number of buffers, shared by the DownloadChannels created with it. the
+ * buffers are allocated the first time they're needed and kept after that. acquire() waits while
+ * all of them are in use, so the channels never hold more than buffers * bufferSize bytes
+ * together, however much they download.
+ * </p>
+ */
+public class BufferPool {
+    public final int bufferSize;
+    private final int maxBuffers;
+    /**
+     * a lock instead of a monitor, so a virtual thread that waits for a buffer doesn't pin its carrier
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private int allocated = 0;
+
+    public BufferPool(int buffers, int bufferSize) {
+        if (buffers < 1 || bufferSize < 1)
+            throw new IllegalArgumentException("bad pool size: " + buffers + " x " + bufferSize);
+        this.maxBuffers = buffers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return an empty buffer, as soon as one is free.
+     */
+    ByteBuffer acquire() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (free.isEmpty() && allocated == maxBuffers) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a buffer");
+                }
+            }
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(bufferSize);
+                allocated++;
+            }
+            buffer.clear();
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            free.push(buffer);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated so far, at most the size of the pool.
+     */
+    public int allocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of buffers holding data that wasn't read yet.
+     */
+    public int inUse() {
+        lock.lock();
+        try {
+            return allocated - free.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mpndrd.httpfiledownload;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.mpndrd.httpfiledownload.DownloadEngine.log;
+
+/**
+ * <p>this class is a circuit breaker for a single host. after threshold failures in a row the
+ * circuit opens and downloads from the host fail right away, without a request, for cooldown
+ * milliseconds. then a single download is let through as a trial: if it works the circuit closes,
+ * if it fails the circuit opens again. a threshold of 0 turns the circuit breaker off.
+ * </p>
+ */
+class CircuitBreaker {
+    private final int threshold;
+    private final long cooldownNanos;
+    private int failures = 0;
+    private long openUntil = 0;
+    private boolean trialInFlight = false;
+
+    CircuitBreaker(int threshold, long cooldown) {
+        this.threshold = threshold;
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldown);
+    }
+
+    synchronized boolean allowRequest() {
+        if (threshold == 0 || failures < threshold)
+            return true;
+        if (System.nanoTime() - openUntil < 0 || trialInFlight)
+            return false;
+
+        trialInFlight = true;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * called when a request that was allowed was canceled before it said anything about the
+     * host. a trial that was canceled is let through again.
+     */
+    synchronized void onCanceled() {
+        trialInFlight = false;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        trialInFlight = false;
+        if (threshold > 0 && failures >= threshold) {
+            openUntil = System.nanoTime() + cooldownNanos;
+            log("circuit open, failures: " + failures);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamDigest;
+import com.mpndrd.httpfiledownload.DownloadEngine.SyncBatch;
+import com.squareup.okhttp.Request;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static com.mpndrd.httpfiledownload.DownloadEngine.commit;
+import static com.mpndrd.httpfiledownload.DownloadEngine.copy;
+import static com.mpndrd.httpfiledownload.DownloadEngine.digestFile;
+import static com.mpndrd.httpfiledownload.DownloadEngine.link;
+import static com.mpndrd.httpfiledownload.DownloadEngine.log;
+import static com.mpndrd.httpfiledownload.DownloadEngine.toHex;
+
+/**
+ * <p>this class keeps a copy of downloaded files, with their ETag and Last-Modified, in
+ * Config.cacheDirectory so the next download of the same url can be a conditional request.
+ * <ul>
+ * <li>a request for a cached url sends If-None-Match/If-Modified-Since. if the server answers
+ * 304 the body isn't sent at all</li>
+ * <li>on a 304, storageLocation is left alone if it still holds the file written last time (same
+ * path, length and modification time), otherwise the cached copy is linked or copied to it. with
+ * an expected digest the cached copy is checked first</li>
+ * <li>the cached copy is a hard link to the downloaded file where the platform can make one,
+ * so it takes no space of its own. downloads replace a file with a rename, never write it in
+ * place, so the cached copy doesn't change with the next download</li>
+ * <li>the cache is bounded to Config.cacheMaxSize bytes. the least recently used files are
+ * evicted first, like android's DiskLruCache</li>
+ * </ul>
+ * the index of entries is kept in the cache directory as "index", one tab separated line per
+ * url, least recently used first.
+ * </p>
+ */
+class DownloadCache {
+    private static final String INDEX = "index";
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * the entries by url, in access order so the eldest entry is the least recently used
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * this is a single cached file
+     */
+    static class Entry {
+        final String url;
+        final String key;
+        final String etag;
+        final String lastModified;
+        final long length;
+
+        /**
+         * where the file was written last, and its modification time after it was written
+         */
+        volatile String target;
+        volatile long targetModified;
+
+        Entry(String url, String etag, String lastModified, long length, String target, long targetModified) {
+            this.url = url;
+            this.key = keyOf(url);
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.target = target;
+            this.targetModified = targetModified;
+        }
+
+        void addConditionalHeaders(Request.Builder builder) {
+            if (etag != null)
+                builder.header("If-None-Match", etag);
+            if (lastModified != null)
+                builder.header("If-Modified-Since", lastModified);
+        }
+    }
+
+    private DownloadCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * opens the cache in directory, creating it if needed, and reads its index.
+     */
+    static DownloadCache open(File directory, long maxSize) {
+        DownloadCache cache = new DownloadCache(directory, maxSize);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            log("cache - can't create " + directory);
+        cache.readIndex();
+        return cache;
+    }
+
+    /**
+     * @return the entry for the url, or null if it isn't cached.
+     */
+    synchronized Entry get(String url) {
+        Entry entry = entries.get(url);
+        if (entry != null && fileOf(entry).length() != entry.length) {
+            // the cached copy is gone or damaged, forget about it
+            remove(entry);
+            writeIndexQuietly();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the cached copy of the entry has the digest.
+     */
+    boolean matches(Entry entry, String algorithm, String expectedDigest) {
+        try {
+            StreamDigest digest = StreamDigest.create(algorithm);
+            RandomAccessFile input = new RandomAccessFile(fileOf(entry), "r");
+            try {
+                digestFile(input.getChannel(), 0, input.length(), digest);
+            } finally {
+                input.close();
+            }
+            return digest.hex().equalsIgnoreCase(expectedDigest);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * drops the entry, like a cached copy that turned out to be bad.
+     */
+    synchronized void invalidate(Entry entry) {
+        remove(entry);
+        writeIndexQuietly();
+    }
+
+    /**
+     * makes sure target holds the cached copy of the entry.
+     */
+    void restore(Entry entry, File target, SyncBatch syncBatch) throws IOException {
+        if (target.getPath().equals(entry.target) && target.length() == entry.length
+                && target.lastModified() == entry.targetModified)
+            return;
+
+        File part = new File(target.getPath() + ".part");
+        linkOrCopy(fileOf(entry), part);
+        commit(part, target, syncBatch);
+        synchronized (this) {
+            entry.target = target.getPath();
+            entry.targetModified = target.lastModified();
+            writeIndexQuietly();
+        }
+    }
+
+    /**
+     * stores a copy of the file that was just downloaded. files without a validator, or bigger
+     * than the whole cache, aren't cached.
+     */
+    void put(String url, String etag, String lastModified, File file) {
+        Entry old;
+        synchronized (this) {
+            old = entries.get(url);
+        }
+
+        long length = file.length();
+        if ((etag == null && lastModified == null) || length > maxSize) {
+            synchronized (this) {
+                if (old != null) {
+                    remove(old);
+                    writeIndexQuietly();
+                }
+            }
+            return;
+        }
+
+        Entry entry = new Entry(url, etag, lastModified, length, file.getPath(), file.lastModified());
+        File temp = new File(directory, entry.key + ".tmp");
+        try {
+            linkOrCopy(file, temp);
+        } catch (IOException e) {
+            log("cache - can't store " + url + ": " + e.getMessage());
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            Entry current = entries.remove(url);
+            if (current != null)
+                size -= current.length;
+            if (!temp.renameTo(fileOf(entry))) {
+                log("cache - can't rename " + temp);
+                temp.delete();
+                fileOf(entry).delete();
+                writeIndexQuietly();
+                return;
+            }
+
+            entries.put(url, entry);
+            size += length;
+            trimToSize();
+            writeIndexQuietly();
+        }
+    }
+
+    /**
+     * evicts the least recently used entries until the cache fits in maxSize.
+     */
+    private void trimToSize() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.length;
+            fileOf(eldest).delete();
+        }
+    }
+
+    /**
+     * makes the file to a hard link of from, or a copy of it if the platform can't link (another
+     * file system, say). whatever was at to is replaced.
+     */
+    private static void linkOrCopy(File from, File to) throws IOException {
+        to.delete();
+        if (!link(from, to))
+            copy(from, to);
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.url) != null)
+            size -= entry.length;
+        fileOf(entry).delete();
+    }
+
+    private File fileOf(Entry entry) {
+        return new File(directory, entry.key);
+    }
+
+    private void readIndex() {
+        File index = new File(directory, INDEX);
+        if (!index.exists())
+            return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 6)
+                        continue;
+                    Entry entry = new Entry(fields[0], emptyToNull(fields[1]), emptyToNull(fields[2]),
+                            Long.parseLong(fields[3]), emptyToNull(fields[4]), Long.parseLong(fields[5]));
+                    entries.put(entry.url, entry);
+                    size += entry.length;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            log("cache - can't read index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes the index to a temp file and renames it over the old one.
+     */
+    private void writeIndexQuietly() {
+        File temp = new File(directory, INDEX + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            try {
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.url + '\t' + nullToEmpty(entry.etag) + '\t' + nullToEmpty(entry.lastModified)
+                            + '\t' + entry.length + '\t' + nullToEmpty(entry.target) + '\t' + entry.targetModified + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(new File(directory, INDEX)))
+                throw new IOException("can't rename " + temp);
+        } catch (IOException e) {
+            log("cache - can't write index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the md5 of the url in hex, used as the name of the cached file.
+     */
+    static String keyOf(String url) {
+        try {
+            return toHex(MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8")));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,265 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamConsumer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>this is a StreamConsumer that's read like a channel, from another thread than the download.
+ * the download thread copies the body into buffers from a BufferPool and queues them, read()
+ * takes them off the queue and gives them back to the pool. when the reader falls behind and the
+ * pool runs out, the download waits for it. a buffer is passed on when it's full, or earlier when
+ * the reader is waiting for it.
+ * </p>
+ * <p>read() returns -1 at the end of the body, and throws an IOException with the error as its
+ * cause if the download failed or was canceled, without the bytes it didn't read yet. closing the
+ * channel before the end stops the download (it fails with a ConsumerException) and gives the
+ * buffers back. use Channels.newInputStream() to read it as an InputStream.
+ * </p>
+ * <p>a channel can start over before anything was read from it, not after: a download that has
+ * to (the file changed on the server between attempts, or the digest didn't match) fails then.
+ * </p>
+ */
+public class DownloadChannel implements ReadableByteChannel, StreamConsumer {
+    private final BufferPool pool;
+    // locks instead of monitors, so a virtual thread on either side doesn't pin its carrier while it waits
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    // guarded by lock
+    private final Deque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer filling = null;
+    private long received = 0;
+    private boolean readStarted = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    private Exception error = null;
+
+    // guarded by readLock
+    private ByteBuffer reading = null;
+
+    public DownloadChannel(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * creates a channel with a pool of its own.
+     */
+    public DownloadChannel(int buffers, int bufferSize) {
+        this(new BufferPool(buffers, bufferSize));
+    }
+
+    @Override
+    public void onStart(long offset, long contentLength) throws IOException {
+        lock.lock();
+        try {
+            if (offset == received)
+                return;
+            if (offset != 0 || readStarted)
+                throw new IOException("can't start over at " + offset + ", " + received + " bytes were read already");
+            releaseUnread();
+            received = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            // waiting for a buffer holds back the download until the reader gives one back
+            ByteBuffer buffer = needsBuffer() ? pool.acquire() : null;
+
+            lock.lock();
+            try {
+                if (closed || finished) {
+                    if (buffer != null)
+                        pool.release(buffer);
+                    checkWritable();
+                }
+                if (filling == null) {
+                    // the reader took the buffer in the meantime
+                    if (buffer == null)
+                        continue;
+                    filling = buffer;
+                } else if (buffer != null) {
+                    pool.release(buffer);
+                }
+
+                int count = Math.min(data.remaining(), filling.remaining());
+                int limit = data.limit();
+                data.limit(data.position() + count);
+                filling.put(data);
+                data.limit(limit);
+                received += count;
+                if (!filling.hasRemaining()) {
+                    filling.flip();
+                    queue.add(filling);
+                    filling = null;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * gives the buffers the reader hasn't taken back to the pool. called with the lock held.
+     */
+    private void releaseUnread() {
+        for (ByteBuffer buffer : queue)
+            pool.release(buffer);
+        queue.clear();
+        if (filling != null) {
+            pool.release(filling);
+            filling = null;
+        }
+    }
+
+    private boolean needsBuffer() throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            return filling == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed)
+            throw new IOException("channel closed");
+        if (finished)
+            throw new IOException("download finished");
+    }
+
+    @Override
+    public void onFinished(Exception error) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            finished = true;
+            this.error = error;
+            if (error != null) {
+                // the bytes that weren't read are of no use, the reader gets the error right
+                // away. a download thread that waits for a buffer (after a cancel) gets one
+                // back, and stops
+                releaseUnread();
+            } else if (filling != null) {
+                filling.flip();
+                queue.add(filling);
+                filling = null;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            if (reading == null || !reading.hasRemaining()) {
+                if (reading != null) {
+                    pool.release(reading);
+                    reading = null;
+                }
+                reading = take();
+                if (reading == null)
+                    return -1;
+            }
+            int count = Math.min(dst.remaining(), reading.remaining());
+            int limit = reading.limit();
+            reading.limit(reading.position() + count);
+            dst.put(reading);
+            reading.limit(limit);
+            return count;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * waits for the next bytes. a buffer that's being filled is taken as it is, so the reader
+     * doesn't wait for it to fill up.
+     *
+     * @return the next buffer, or null at the end of the body
+     */
+    private ByteBuffer take() throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed)
+                    throw new ClosedChannelException();
+                ByteBuffer buffer = queue.poll();
+                if (buffer == null && filling != null && filling.position() > 0) {
+                    buffer = filling;
+                    buffer.flip();
+                    filling = null;
+                }
+                if (buffer != null) {
+                    readStarted = true;
+                    return buffer;
+                }
+                if (finished) {
+                    if (error != null)
+                        throw new IOException("download failed: " + error.getMessage(), error);
+                    return null;
+                }
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for the download");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            releaseUnread();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        readLock.lock();
+        try {
+            if (reading != null) {
+                pool.release(reading);
+                reading = null;
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+}
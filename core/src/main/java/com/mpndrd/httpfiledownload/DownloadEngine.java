@@ -0,0 +1,3792 @@
+package com.mpndrd.httpfiledownload;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.net.SocketFactory;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Created by maxpower on 7/18/2015.
+ * <p>
+ * this class is the part of HttpFileDownloader that doesn't depend on android, so it also runs on a
+ * plain jvm (and in the benchmarks). it holds the configuration, the shared okhttp client, the
+ * scheduler and everything that downloads a file and saves it to disk. HttpFileDownloader extends
+ * it with the AsyncTask wrapper that reports to a DownloadStatusListener on the main thread.
+ * </p>
+ * <p>
+ * the engine:
+ * <ul>
+ * <li>runs downloads on the DownloadScheduler's worker threads, see submit().</li>
+ * <li>uses the basic run method provided by okhttp tutorial for downloading data.</li>
+ * <li>shares a single okhttp client between all downloads, see getClient().</li>
+ * <li>uses the code from the following recipe to add a network interceptor for progress reporting.<br/>
+ * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java</li>
+ * </ul>
+ * </p>
+ * <p>the bigger parts live in classes of their own in this package: DownloadScheduler,
+ * SegmentedDownload, DownloadJournal, DownloadCache, RetryPolicy and CircuitBreaker,
+ * DownloadChannel and BufferPool, DownloadMetrics and DownloadStats, and Platform. this class ties
+ * them together, and is what the apps call.
+ * </p>
+ * <p><strong>notes</strong>: responses are saved to file with writeBody(), which also keeps the resume journal up to date.</p>
+ */
+public class DownloadEngine {
+    /**
+     * this is what the engine needs from the platform it runs on. the default logs nothing and
+     * doesn't preallocate or link, HttpFileDownloader installs the android one and
+     * JvmFileDownloader the jvm one.
+     */
+    private static Platform platform = new Platform();
+
+    /**
+     * this is the configuration used by all downloads. change it with Configure().
+     */
+    private static Config config = new Config.Builder().build();
+
+    /**
+     * this is the process-wide scheduler shared by all downloads. it is created on first use.
+     */
+    private static DownloadScheduler scheduler = null;
+
+    /**
+     * this is the process-wide okhttp client shared by all downloads, so connections and TLS
+     * sessions are reused between DownloadFiles calls. it is created on first use.
+     */
+    private static OkHttpClient client = null;
+
+    /**
+     * this is the download cache, null if Config.cacheDirectory isn't set. it is opened on first use.
+     */
+    private static DownloadCache cache = null;
+
+    /**
+     * these are the downloads that are queued or running, by SharedDownload.key(), so the same file
+     * isn't downloaded twice at the same time
+     */
+    private static final Map<String, SharedDownload> sharedDownloads = new HashMap<String, SharedDownload>();
+
+    /**
+     * this tunes the scheduler's limit, null if Config.adaptiveSampleInterval is 0
+     */
+    private static volatile ConcurrencyController concurrencyController = null;
+
+    /**
+     * these are the circuit breakers for every host downloads were made from
+     */
+    private static final Map<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
+
+    /**
+     * this is the rate limiter shared by all downloads, null if Config.maxBytesPerSecond isn't set
+     */
+    private static RateLimiter rateLimiter = null;
+
+    /**
+     * these are the rate limiters for every host, if Config.maxBytesPerSecondPerHost is set
+     */
+    private static final Map<String, RateLimiter> hostRateLimiters = new HashMap<String, RateLimiter>();
+
+    /**
+     * this static method replaces the configuration used by all downloads. downloads that are
+     * already running keep going, the new limits apply to downloads that start after this call.
+     *
+     * @param newConfig - the configuration to use, build it with Config.Builder.
+     */
+    public static synchronized void Configure(Config newConfig) {
+        if (newConfig == null)
+            throw new IllegalArgumentException("config == null");
+
+        Config oldConfig = config;
+        config = newConfig;
+        if (scheduler != null) {
+            scheduler.setLimits(maxConcurrentDownloads(), config.maxDownloadsPerHost, config.maxQueuedDownloads);
+            scheduler.setExecutor(config.executor);
+        }
+
+        if (cache != null && !oldConfig.sameCacheSettings(newConfig))
+            cache = null;
+        if (oldConfig.circuitBreakerThreshold != newConfig.circuitBreakerThreshold
+                || oldConfig.circuitBreakerCooldown != newConfig.circuitBreakerCooldown)
+            circuitBreakers.clear();
+        if (oldConfig.maxBytesPerSecond != newConfig.maxBytesPerSecond)
+            rateLimiter = null;
+        if (oldConfig.maxBytesPerSecondPerHost != newConfig.maxBytesPerSecondPerHost)
+            hostRateLimiters.clear();
+
+        // only throw away the client (and its pooled connections) if its settings changed
+        if (client != null && !oldConfig.sameClientSettings(newConfig)) {
+            client.getConnectionPool().evictAll();
+            client = null;
+        }
+    }
+
+    /**
+     * @return the configuration currently used by all downloads.
+     */
+    public static synchronized Config getConfig() {
+        return config;
+    }
+
+    /**
+     * replaces the platform hooks. call it before the first download.
+     */
+    protected static synchronized void setPlatform(Platform newPlatform) {
+        platform = newPlatform;
+    }
+
+    static void log(String message) {
+        platform.log(message);
+    }
+
+    /**
+     * @return false if the platform can't make hard links, or couldn't link from to to.
+     */
+    static boolean link(File from, File to) {
+        return platform.link(from, to);
+    }
+
+    /**
+     * @return the shared okhttp client, built from the current configuration.
+     */
+    static synchronized OkHttpClient getClient() {
+        if (client == null)
+            client = createClient(config);
+        return client;
+    }
+
+    /**
+     * builds an okhttp client with the connection pool, protocols, dispatcher limits and timeouts
+     * from the configuration. the progress networkInterceptor is added here, once per client.
+     */
+    private static OkHttpClient createClient(Config config) {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(new ConnectionPool(config.maxIdleConnections, config.keepAliveDuration));
+        client.setConnectTimeout(config.connectTimeout, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(config.readTimeout, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(config.writeTimeout, TimeUnit.MILLISECONDS);
+        if (config.http2Enabled)
+            client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        else
+            client.setProtocols(Arrays.asList(Protocol.HTTP_1_1));
+
+        // the asynchronous calls of a BatchDownload run on the same daemon threads as the scheduler
+        Dispatcher dispatcher = new Dispatcher(DownloadScheduler.defaultExecutor);
+        dispatcher.setMaxRequests(config.maxRequests);
+        dispatcher.setMaxRequestsPerHost(config.maxRequestsPerHost);
+        client.setDispatcher(dispatcher);
+
+        // connects are timed for the DownloadMetrics. okhttp 2 has no public dns hook, so dns
+        // lookups aren't
+        client.setSocketFactory(new TimedSocketFactory());
+
+        // each download request carries a Transfer as its tag. the body is wrapped to report its
+        // progress, to limit its rate and to measure the transfer (for the metrics and the
+        // concurrency controller), responses that need none of it aren't wrapped
+        client.networkInterceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                MetricsScope scope = MetricsScope.current();
+                long start = System.nanoTime();
+                if (scope != null) {
+                    // the interceptor runs right after the handshake of a new connection. the time since
+                    // the connect is an estimate of the handshake, okhttp 2 can't time it exactly
+                    if (scope.connectEnd != -1 && chain.request().isHttps())
+                        scope.metrics.recordTls(start - scope.connectEnd);
+                    scope.connectEnd = -1;
+                }
+
+                Response originalResponse = chain.proceed(chain.request());
+                DownloadMetrics metrics = scope == null ? null : scope.metrics;
+                if (metrics != null)
+                    metrics.recordResponse(originalResponse.code(), System.nanoTime() - start);
+
+                Object tag = chain.request().tag();
+                if (!(tag instanceof Transfer))
+                    return originalResponse;
+
+                Transfer transfer = (Transfer) tag;
+                ConcurrencyController controller = getConcurrencyController();
+                if (controller != null)
+                    controller.recordLatency(System.nanoTime() - start);
+                RateLimiter[] rateLimiters = getRateLimiters(chain.request().url().getHost(), transfer.rateLimiter);
+                if (transfer.listener == null && rateLimiters == null && metrics == null && controller == null)
+                    return originalResponse;
+
+                return originalResponse.newBuilder()
+                        .body(new ProgressResponseBody(originalResponse.body(), transfer.listener, rateLimiters, metrics, controller))
+                        .build();
+            }
+        });
+        return client;
+    }
+
+    /**
+     * @return the download cache, or null if caching is off.
+     */
+    static synchronized DownloadCache getCache() {
+        if (cache == null && config.cacheDirectory != null)
+            cache = DownloadCache.open(config.cacheDirectory, config.cacheMaxSize);
+        return cache;
+    }
+
+    /**
+     * @return the circuit breaker for the host, created from the current configuration if needed.
+     */
+    static synchronized CircuitBreaker getCircuitBreaker(String host) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(config.circuitBreakerThreshold, config.circuitBreakerCooldown);
+            circuitBreakers.put(host, circuitBreaker);
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * @param requestLimiter - the limiter of the request itself, can be null
+     * @return the rate limiters that apply to a response from the host, or null if there are none.
+     */
+    static synchronized RateLimiter[] getRateLimiters(String host, RateLimiter requestLimiter) {
+        if (rateLimiter == null && config.maxBytesPerSecond > 0)
+            rateLimiter = new RateLimiter(config.maxBytesPerSecond);
+        RateLimiter hostLimiter = hostRateLimiters.get(host);
+        if (hostLimiter == null && config.maxBytesPerSecondPerHost > 0) {
+            hostLimiter = new RateLimiter(config.maxBytesPerSecondPerHost);
+            hostRateLimiters.put(host, hostLimiter);
+        }
+
+        List<RateLimiter> limiters = new ArrayList<RateLimiter>(3);
+        for (RateLimiter limiter : new RateLimiter[]{rateLimiter, hostLimiter, requestLimiter}) {
+            if (limiter != null)
+                limiters.add(limiter);
+        }
+        return limiters.isEmpty() ? null : limiters.toArray(new RateLimiter[limiters.size()]);
+    }
+
+    static synchronized DownloadScheduler getScheduler() {
+        if (scheduler == null) {
+            scheduler = new DownloadScheduler(maxConcurrentDownloads(), config.maxDownloadsPerHost, config.maxQueuedDownloads);
+            scheduler.setExecutor(config.executor);
+        }
+        return scheduler;
+    }
+
+    /**
+     * @return the concurrency controller, or null if Config.adaptiveSampleInterval is 0.
+     */
+    static ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @return the scheduler's limit: Config.maxConcurrentDownloads, or what the concurrency
+     * controller picked.
+     */
+    private static int maxConcurrentDownloads() {
+        if (config.adaptiveSampleInterval == 0) {
+            concurrencyController = null;
+            return config.maxConcurrentDownloads;
+        }
+        if (concurrencyController == null || concurrencyController.intervalNanos != TimeUnit.MILLISECONDS.toNanos(config.adaptiveSampleInterval))
+            concurrencyController = new ConcurrencyController(config.adaptiveSampleInterval, config.maxConcurrentDownloads);
+        concurrencyController.setMaxLimit(config.maxConcurrentDownloads);
+        return concurrencyController.limit();
+    }
+
+    /**
+     * this static method queues a file on the shared scheduler. it's downloaded on the scheduler's
+     * executor (see Config.executor), retried according to Config.retryPolicy, and the returned
+     * future completes with the result. blocks while the scheduler's ready queue is full.
+     * <p/>
+     * if the same file is already queued or downloading, the request joins that download instead
+     * of starting another one, see SharedDownload and Config.deduplicateDownloads. a StreamRequest
+     * always gets its own download.
+     *
+     * @param downloadRequest - the file to download
+     * @param listener        - gets the progress of the file, from the download threads. can be null
+     * @return the future for the download. wait for it with get(), or add a DownloadCallback
+     */
+    public static DownloadFuture submit(DownloadRequest downloadRequest, ProgressListener listener) throws InterruptedException {
+        return submit(downloadRequest, listener, null);
+    }
+
+    /**
+     * this is submit() for a file that's part of a batch: with Config.SYNC_BATCH the file is added
+     * to syncBatch when it's moved into place, and synced with the batch.
+     *
+     * @param syncBatch - null syncs the file on its own, like SYNC_FILE
+     */
+    public static DownloadFuture submit(DownloadRequest downloadRequest, ProgressListener listener, SyncBatch syncBatch)
+            throws InterruptedException {
+        DownloadFuture future = new DownloadFuture(downloadRequest, syncBatch);
+        Config config = getConfig();
+        String host = hostOf(downloadRequest.URL);
+        if (downloadRequest instanceof StreamRequest)
+            ((StreamRequest) downloadRequest).start(future);
+        if (!config.deduplicateDownloads || downloadRequest instanceof StreamRequest) {
+            getScheduler().submit(host, downloadRequest.priority, new DownloadJob(downloadRequest, listener, future));
+            return future;
+        }
+
+        String key = SharedDownload.key(downloadRequest);
+        SharedDownload shared;
+        boolean joined;
+        synchronized (sharedDownloads) {
+            shared = sharedDownloads.get(key);
+            joined = shared != null && shared.attach(future, listener);
+            if (!joined) {
+                shared = new SharedDownload(key, downloadRequest, syncBatch, config.linkDuplicates);
+                shared.attach(future, listener);
+                shared.job = new DownloadJob(downloadRequest, shared, shared.future);
+                sharedDownloads.put(key, shared);
+            }
+        }
+        if (joined) {
+            log("joined the download in flight: " + downloadRequest.URL);
+            // the download is as urgent as the most urgent request waiting for it. outside of the
+            // lock, the scheduler may run a download that finishes right away
+            shared.raisePriority(downloadRequest.priority);
+            return future;
+        }
+
+        try {
+            getScheduler().submit(host, downloadRequest.priority, shared.job);
+        } catch (InterruptedException e) {
+            // requests that joined in the meantime fail too
+            shared.future.complete(new InterruptedIOException("interrupted while queueing " + downloadRequest.URL));
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * this method makes a single attempt at downloading a file, on the calling thread. it doesn't
+     * retry, see submit() for that.
+     *
+     * @param downloadRequest - the file to download
+     * @param listener        - gets the progress of the file, can be null
+     */
+    public static ResponseBundle downloadFile(DownloadRequest downloadRequest, ProgressListener listener) throws IOException {
+        return downloadFile(downloadRequest, listener, null);
+    }
+
+    /**
+     * this is downloadFile() for a file that's part of a batch, see submit().
+     *
+     * @param syncBatch - with Config.SYNC_BATCH the file is added to it, null syncs it on its own
+     */
+    public static ResponseBundle downloadFile(DownloadRequest downloadRequest, ProgressListener listener, SyncBatch syncBatch)
+            throws IOException {
+        log("downloadFile - url: " + downloadRequest.URL);
+
+        // the request's own rate limit is shared by all segments of the file
+        RateLimiter rateLimiter = downloadRequest.maxBytesPerSecond > 0 ? new RateLimiter(downloadRequest.maxBytesPerSecond) : null;
+
+        if (downloadRequest instanceof StreamRequest)
+            return downloadToConsumer((StreamRequest) downloadRequest, listener, rateLimiter);
+
+        // with an expected digest the file is hashed while it downloads. segments can only be
+        // hashed separately and combined for a crc32, other digests need the bytes in order.
+        StreamDigest digest = downloadRequest.expectedDigest == null ? null : StreamDigest.create(downloadRequest.digestAlgorithm);
+        boolean canSplit = digest == null || digest instanceof Crc32Digest;
+
+        if (downloadRequest.unpack != null)
+            return downloadUnpacked(downloadRequest, digest, listener, rateLimiter, syncBatch);
+
+        // the journal remembers what was already downloaded by an earlier, interrupted attempt
+        DownloadJournal journal = DownloadJournal.open(downloadRequest);
+
+        // a cached copy lets the server answer 304 instead of sending the file again. not for a
+        // resumed download, the partial file is newer than the cached copy.
+        DownloadCache cache = getCache();
+        DownloadCache.Entry cached = (cache != null && journal.completedBytes() == 0) ? cache.get(downloadRequest.URL) : null;
+
+        // large files are split into byte ranges and downloaded over several connections, when
+        // the server supports it. otherwise fall through to the single stream download.
+        Config config = getConfig();
+        if (config.segmentsPerFile > 1 && canSplit) {
+            SegmentedDownload segmentedDownload = SegmentedDownload.probe(getClient(), downloadRequest, config, journal, cached);
+            if (segmentedDownload != null && segmentedDownload.notModified)
+                return restoreFromCache(cache, cached, downloadRequest, listener, syncBatch);
+            if (segmentedDownload != null) {
+                segmentedDownload.download(listener, rateLimiter, (Crc32Digest) digest);
+                complete(downloadRequest, journal, digest, syncBatch);
+                return new ResponseBundle(true, null);
+            }
+        }
+
+        return downloadStream(downloadRequest, journal, cached, digest, listener, rateLimiter, syncBatch);
+    }
+
+    /**
+     * this is the last step of a successful download: check the digest (if there is one), move
+     * the file into place and update the cache.
+     */
+    private static void complete(DownloadRequest downloadRequest, DownloadJournal journal, StreamDigest digest,
+                                 SyncBatch syncBatch) throws IOException {
+        File part = partialFile(downloadRequest);
+        if (digest != null) {
+            String actual = digest.hex();
+            if (!actual.equalsIgnoreCase(downloadRequest.expectedDigest)) {
+                // the bytes on disk are bad, don't let the next attempt resume them
+                part.delete();
+                journal.delete();
+                throw new DigestMismatchException(downloadRequest.expectedDigest, actual);
+            }
+        }
+        commit(part, new File(downloadRequest.storageLocation), syncBatch);
+        updateCache(downloadRequest, journal);
+    }
+
+    /**
+     * the server said the cached copy is still current: make sure storageLocation holds it. a
+     * cached copy that doesn't match the expected digest is dropped, and the file is downloaded
+     * again without a conditional request.
+     */
+    private static ResponseBundle restoreFromCache(DownloadCache cache, DownloadCache.Entry cached,
+                                            DownloadRequest downloadRequest, ProgressListener listener,
+                                            SyncBatch syncBatch) throws IOException {
+        log("not modified: " + downloadRequest.URL);
+        if (downloadRequest.expectedDigest != null
+                && !cache.matches(cached, downloadRequest.digestAlgorithm, downloadRequest.expectedDigest)) {
+            log("cache - copy doesn't match the digest: " + downloadRequest.URL);
+            cache.invalidate(cached);
+            return downloadFile(downloadRequest, listener, syncBatch);
+        }
+        cache.restore(cached, new File(downloadRequest.storageLocation), syncBatch);
+        DownloadMetrics metrics = DownloadMetrics.current();
+        if (metrics != null)
+            metrics.cacheHit = true;
+        if (listener != null)
+            listener.update(cached.length, cached.length, true);
+        return new ResponseBundle(true, null);
+    }
+
+    /**
+     * stores the file that was just downloaded in the cache, if there is one.
+     */
+    private static void updateCache(DownloadRequest downloadRequest, DownloadJournal journal) {
+        DownloadCache cache = getCache();
+        if (cache != null)
+            cache.put(downloadRequest.URL, journal.etag(), journal.lastModified(), new File(downloadRequest.storageLocation));
+    }
+
+    /**
+     * this method downloads a file over a single connection. if the journal has the start of
+     * the file from an earlier attempt, only the rest of the file is requested. if there is a
+     * cached copy, the request is conditional. if there is a digest, the body is hashed as it's
+     * saved.
+     */
+    private static ResponseBundle downloadStream(DownloadRequest downloadRequest, DownloadJournal journal,
+                                          DownloadCache.Entry cached, StreamDigest digest,
+                                          final ProgressListener listener, RateLimiter rateLimiter,
+                                          SyncBatch syncBatch) throws IOException {
+        File file = partialFile(downloadRequest);
+        long offset = journal.resumeOffset(file);
+
+        // the progress is only reported while the body is read, by then it's known where it starts
+        ResumedProgressListener streamListener = listener == null ? null : new ResumedProgressListener(listener);
+        Request.Builder builder = new Request.Builder()
+                .url(downloadRequest.URL)
+                .tag(new Transfer(streamListener, rateLimiter));
+        if (offset > 0) {
+            // If-Range makes the server send the whole file if it changed since the last attempt
+            log("downloadStream - resuming at: " + offset);
+            builder.header("Range", "bytes=" + offset + "-")
+                    .header("If-Range", journal.validator())
+                    .header("Accept-Encoding", "identity");
+        } else if (cached != null) {
+            cached.addConditionalHeaders(builder);
+        }
+
+        Response response = getClient().newCall(builder.build()).execute();
+        log("response is: " + ((response == null) ? "null" : "not null"));
+
+        if (response.code() == 304 && cached != null) {
+            response.body().close();
+            return restoreFromCache(getCache(), cached, downloadRequest, listener, syncBatch);
+        }
+
+        // an error body is never saved: it would overwrite the partial file, which the next attempt
+        // can still resume
+        if (!response.isSuccessful()) {
+            response.body().close();
+            return new ResponseBundle(false, new HttpError(response));
+        }
+
+        long position = 0;
+        if (response.code() == 206) {
+            long[] contentRange = parseContentRange(response.header("Content-Range"));
+            if (contentRange == null || contentRange[0] != offset) {
+                response.body().close();
+                throw new IOException("unexpected Content-Range: " + response.header("Content-Range"));
+            }
+            position = offset;
+        } else {
+            journal.reset(response.header("ETag"), response.header("Last-Modified"), response.body().contentLength());
+        }
+        // progress for a resumed download includes the bytes downloaded before. a 200 starts over
+        if (streamListener != null)
+            streamListener.offset = position;
+
+        // this is what saves the body to the partial file
+        boolean completed = false;
+        RandomAccessFile output = openFile(file);
+        try {
+            output.setLength(position);
+            preallocate(output, position, response.body().contentLength());
+
+            // the start of a resumed file was downloaded earlier, it has to be read back to hash it
+            if (digest != null && position > 0)
+                digestFile(output.getChannel(), 0, position, digest);
+
+            long end = writeBody(response.body().source(), output.getChannel(), position, journal, null, digest);
+            output.setLength(end);
+            completed = true;
+        } finally {
+            output.close();
+            response.body().close();
+            if (completed)
+                journal.delete();
+            else
+                journal.saveQuietly();
+        }
+
+        complete(downloadRequest, journal, digest, syncBatch);
+        return new ResponseBundle(true, null);
+    }
+
+    /**
+     * this listener adds the bytes a resumed download already had to its progress. offset is set
+     * once the response says where the body starts, before it's read.
+     */
+    private static class ResumedProgressListener implements ProgressListener {
+        private final ProgressListener listener;
+        volatile long offset = 0;
+
+        ResumedProgressListener(ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void update(long bytesRead, long contentLength, boolean done) {
+            listener.update(offset + bytesRead, contentLength == -1 ? -1 : offset + contentLength, done);
+        }
+    }
+
+    /**
+     * <p>this method downloads a file and unpacks it while it streams in, see DownloadRequest.unpack.
+     * the packed file never touches the disk: gzip and deflate are inflated straight into the file,
+     * zip entries are extracted into the directory. the output goes to storageLocation + ".part" and
+     * replaces storageLocation when it's complete.
+     * </p>
+     * <p>the unpacked output can't be resumed, split into segments or cached, so this is always a
+     * single request for the whole file. an expected digest is of the downloaded (packed) bytes.
+     * the download fails when the output grows past Config.maxUnpackedSize.
+     * </p>
+     */
+    private static ResponseBundle downloadUnpacked(DownloadRequest downloadRequest, StreamDigest digest,
+                                                   ProgressListener listener, RateLimiter rateLimiter,
+                                                   SyncBatch syncBatch) throws IOException {
+        String format = downloadRequest.unpack.toLowerCase(Locale.US);
+        if (!format.equals(DownloadRequest.UNPACK_GZIP) && !format.equals(DownloadRequest.UNPACK_DEFLATE)
+                && !format.equals(DownloadRequest.UNPACK_ZIP))
+            throw new IOException("unsupported unpack format: " + downloadRequest.unpack);
+
+        // identity, or okhttp would already gunzip a body the server sent with Content-Encoding: gzip
+        Request request = new Request.Builder()
+                .url(downloadRequest.URL)
+                .header("Accept-Encoding", "identity")
+                .tag(new Transfer(listener, rateLimiter))
+                .build();
+        Response response = getClient().newCall(request).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            return new ResponseBundle(false, new HttpError(response));
+        }
+
+        File target = new File(downloadRequest.storageLocation);
+        File part = new File(downloadRequest.storageLocation + ".part");
+        deleteRecursively(part);
+        boolean completed = false;
+        Source raw = response.body().source();
+        if (digest != null)
+            raw = new DigestingSource(raw, digest);
+        try {
+            Config config = getConfig();
+            if (format.equals(DownloadRequest.UNPACK_ZIP)) {
+                BufferedSource source = Okio.buffer(raw);
+                unzip(source, part, config.maxUnpackedSize, config.maxUnpackedEntries);
+                // the central directory at the end isn't needed, but it's part of the digest
+                Buffer skipped = new Buffer();
+                while (source.read(skipped, 64 * 1024) != -1)
+                    skipped.clear();
+            } else {
+                Source inflated = format.equals(DownloadRequest.UNPACK_GZIP)
+                        ? new GzipSource(raw) : new InflaterSource(raw, new Inflater());
+                raw = inflated;
+                RandomAccessFile output = openFile(part);
+                try {
+                    output.setLength(0);
+                    long end = writeBody(Okio.buffer(new LimitedSource(inflated, new AtomicLong(config.maxUnpackedSize))),
+                            output.getChannel(), 0, null, null, null);
+                    output.setLength(end);
+                } finally {
+                    output.close();
+                }
+            }
+
+            if (digest != null && !digest.hex().equalsIgnoreCase(downloadRequest.expectedDigest))
+                throw new DigestMismatchException(downloadRequest.expectedDigest, digest.hex());
+            commit(part, target, syncBatch);
+            completed = true;
+        } finally {
+            raw.close();
+            response.body().close();
+            if (!completed)
+                deleteRecursively(part);
+        }
+        return new ResponseBundle(true, null);
+    }
+
+    /**
+     * <p>this method streams the body to the StreamConsumer of the request instead of a file. the
+     * bytes go from the socket to the consumer through one reused buffer, so the memory it takes
+     * doesn't grow with the body, and a consumer that blocks holds back the download.
+     * </p>
+     * <p>a retry resumes after the bytes the consumer already got, with If-Range so it's still the
+     * same file. if the server sends the whole body again, or the digest didn't match, the consumer
+     * starts over with onStart(0, ...). a stream is never split into segments, cached or unpacked.
+     * </p>
+     */
+    private static ResponseBundle downloadToConsumer(StreamRequest streamRequest, final ProgressListener listener,
+                                                     RateLimiter rateLimiter) throws IOException {
+        final long offset = streamRequest.validator == null ? 0 : streamRequest.delivered;
+
+        // progress for a resumed stream includes the bytes delivered before
+        ProgressListener streamListener = offset == 0 || listener == null ? listener : new ProgressListener() {
+            @Override
+            public void update(long bytesRead, long contentLength, boolean done) {
+                listener.update(offset + bytesRead, contentLength == -1 ? -1 : offset + contentLength, done);
+            }
+        };
+
+        Request.Builder builder = new Request.Builder()
+                .url(streamRequest.URL)
+                .tag(new Transfer(streamListener, rateLimiter));
+        if (offset > 0) {
+            log("downloadToConsumer - resuming at: " + offset);
+            builder.header("Range", "bytes=" + offset + "-")
+                    .header("If-Range", streamRequest.validator)
+                    .header("Accept-Encoding", "identity");
+        }
+
+        Response response = getClient().newCall(builder.build()).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            return new ResponseBundle(false, new HttpError(response));
+        }
+
+        long position = 0;
+        if (response.code() == 206) {
+            long[] contentRange = parseContentRange(response.header("Content-Range"));
+            if (contentRange == null || contentRange[0] != offset) {
+                response.body().close();
+                throw new IOException("unexpected Content-Range: " + response.header("Content-Range"));
+            }
+            position = offset;
+        } else {
+            // the whole body, the consumer starts over
+            String etag = response.header("ETag");
+            streamRequest.validator = etag != null && !etag.startsWith("W/") ? etag : response.header("Last-Modified");
+            streamRequest.digest = streamRequest.expectedDigest == null ? null : StreamDigest.create(streamRequest.digestAlgorithm);
+        }
+        streamRequest.delivered = position;
+
+        StreamConsumer consumer = streamRequest.consumer;
+        IoBuffers buffers = ioBuffers();
+        byte[] chunk = buffers.chunk;
+        ByteBuffer view = buffers.chunkView;
+        try {
+            long length = response.body().contentLength();
+            try {
+                consumer.onStart(position, length == -1 ? -1 : position + length);
+            } catch (IOException e) {
+                throw new ConsumerException(e);
+            }
+
+            BufferedSource source = response.body().source();
+            int read;
+            while ((read = source.read(chunk, 0, chunk.length)) != -1) {
+                if (streamRequest.canceled.get())
+                    throw new IOException("download canceled");
+                if (streamRequest.digest != null)
+                    streamRequest.digest.update(chunk, 0, read);
+                view.clear();
+                view.limit(read);
+                try {
+                    consumer.onData(view);
+                } catch (IOException e) {
+                    throw new ConsumerException(e);
+                }
+                streamRequest.delivered += read;
+            }
+        } finally {
+            response.body().close();
+        }
+
+        if (streamRequest.digest != null) {
+            String actual = streamRequest.digest.hex();
+            if (!actual.equalsIgnoreCase(streamRequest.expectedDigest)) {
+                // the consumer got bad bytes, a retry has to start over
+                streamRequest.delivered = 0;
+                streamRequest.validator = null;
+                throw new DigestMismatchException(streamRequest.expectedDigest, actual);
+            }
+        }
+        return new ResponseBundle(true, null);
+    }
+
+    /**
+     * extracts all entries of the zip stream into the directory, as they're read. it fails once the
+     * entries add up to more than maxSize bytes, or there are more than maxEntries of them.
+     */
+    static void unzip(BufferedSource source, File directory, long maxSize, int maxEntries) throws IOException {
+        if (!directory.mkdirs())
+            throw new IOException("can't create " + directory);
+        String root = directory.getCanonicalPath() + File.separator;
+
+        AtomicLong remaining = new AtomicLong(maxSize);
+        int entries = 0;
+        ZipInputStream zip = new ZipInputStream(source.inputStream());
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (++entries > maxEntries)
+                throw new IOException("zip has more than " + maxEntries + " entries");
+            File file = new File(directory, entry.getName());
+            // an entry named ../something would end up outside of the directory
+            if (!file.getCanonicalPath().startsWith(root))
+                throw new IOException("zip entry outside of the directory: " + entry.getName());
+
+            if (entry.isDirectory()) {
+                if (!file.isDirectory() && !file.mkdirs())
+                    throw new IOException("can't create " + file);
+                continue;
+            }
+
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("can't create " + parent);
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(0);
+                // the entry's stream ends with the entry, not with the zip
+                long end = writeBody(Okio.buffer(new LimitedSource(Okio.source(zip), remaining)),
+                        output.getChannel(), 0, null, null, null);
+                output.setLength(end);
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * this source fails once more than remaining bytes were read through it. the remaining bytes
+     * can be shared by several sources, like the entries of a zip.
+     */
+    private static class LimitedSource extends ForwardingSource {
+        private final AtomicLong remaining;
+
+        LimitedSource(Source source, AtomicLong remaining) {
+            super(source);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0 && remaining.addAndGet(-read) < 0)
+                throw new IOException("unpacked size over the limit, see Config.maxUnpackedSize");
+            return read;
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * <p>this is a download that several submit() calls asked for at the same time: the same URL,
+     * unpacked the same way and checked against the same digest (see key()). the file is downloaded
+     * once, to the storageLocation of the first request, and every request gets its own
+     * DownloadFuture. the progress goes to all their listeners, and requests for another
+     * storageLocation get a copy of the file (or a hard link, see Config.linkDuplicates). a request
+     * with a higher priority than the download raises it on the scheduler.
+     * </p>
+     * <p>canceling one of the futures only detaches that request. the download stops once all of
+     * them are canceled. until then it's still saved to the first request's storageLocation.
+     * </p>
+     */
+    static class SharedDownload implements ProgressListener, DownloadCallback {
+        private final String key;
+        private final boolean link;
+        final DownloadFuture future;
+        /**
+         * the job on the scheduler, set before the download is shared
+         */
+        DownloadJob job;
+        private int priority;
+        private List<DownloadFuture> requesters = new ArrayList<DownloadFuture>();
+        private volatile ProgressListener[] listeners = new ProgressListener[0];
+
+        SharedDownload(String key, DownloadRequest downloadRequest, SyncBatch syncBatch, boolean link) {
+            this.key = key;
+            this.link = link;
+            this.future = new DownloadFuture(downloadRequest, syncBatch);
+            this.priority = downloadRequest.priority;
+            future.addCallback(this);
+        }
+
+        /**
+         * @return what makes two requests the same download, whatever their storageLocation.
+         */
+        static String key(DownloadRequest downloadRequest) {
+            String digest = downloadRequest.expectedDigest == null ? ""
+                    : downloadRequest.digestAlgorithm.toUpperCase(Locale.US) + ":" + downloadRequest.expectedDigest.toLowerCase(Locale.US);
+            return downloadRequest.URL + "\n" + downloadRequest.unpack + "\n" + digest;
+        }
+
+        /**
+         * adds a request to the download.
+         *
+         * @param listener - can be null
+         * @return false if the download is already finishing, start a new one then
+         */
+        synchronized boolean attach(DownloadFuture requester, ProgressListener listener) {
+            if (requesters == null)
+                return false;
+            requesters.add(requester);
+            requester.shared = this;
+            if (listener != null) {
+                ProgressListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+                newListeners[listeners.length] = listener;
+                listeners = newListeners;
+            }
+            return true;
+        }
+
+        /**
+         * moves the download up to the priority of a request that joined it, if that's higher.
+         */
+        void raisePriority(int priority) {
+            synchronized (this) {
+                if (priority <= this.priority)
+                    return;
+                this.priority = priority;
+            }
+            getScheduler().raisePriority(job, priority);
+        }
+
+        /**
+         * called when the future of a request was canceled.
+         */
+        void detach(DownloadFuture requester) {
+            synchronized (this) {
+                if (requesters == null || !requesters.remove(requester) || !requesters.isEmpty())
+                    return;
+            }
+            future.cancel(false);
+        }
+
+        @Override
+        public void update(long bytesRead, long contentLength, boolean done) {
+            for (ProgressListener listener : listeners)
+                listener.update(bytesRead, contentLength, done);
+        }
+
+        @Override
+        public void onFinished(DownloadRequest downloadRequest, Exception error) {
+            synchronized (sharedDownloads) {
+                if (sharedDownloads.get(key) == this)
+                    sharedDownloads.remove(key);
+            }
+            List<DownloadFuture> finished;
+            synchronized (this) {
+                finished = requesters;
+                requesters = null;
+            }
+
+            // all copies are made before any future completes, a callback may move its file away
+            File file = new File(downloadRequest.storageLocation).getAbsoluteFile();
+            Exception[] errors = new Exception[finished.size()];
+            for (int i = 0; i < errors.length; i++) {
+                errors[i] = error;
+                DownloadFuture requester = finished.get(i);
+                File target = new File(requester.downloadRequest.storageLocation).getAbsoluteFile();
+                if (error == null && !target.equals(file)) {
+                    try {
+                        copyDownload(file, target, link, requester.syncBatch);
+                    } catch (IOException e) {
+                        errors[i] = e;
+                    }
+                } else if (error == null && requester.syncBatch != null && requester.syncBatch != future.syncBatch
+                        && getConfig().syncPolicy == Config.SYNC_BATCH) {
+                    // the same file, it has to be in the batch of this request too
+                    requester.syncBatch.add(target);
+                }
+            }
+            for (int i = 0; i < errors.length; i++)
+                finished.get(i).complete(errors[i]);
+        }
+    }
+
+    /**
+     * copies a downloaded file, or an unpacked directory, to another storageLocation. the copy goes
+     * to target + ".part" and replaces target when it's complete.
+     *
+     * @param link - make hard links instead of copies, if the platform can
+     */
+    static void copyDownload(File file, File target, boolean link, SyncBatch syncBatch) throws IOException {
+        File part = new File(target.getPath() + ".part");
+        deleteRecursively(part);
+        boolean completed = false;
+        try {
+            copyTree(file, part, link);
+            commit(part, target, syncBatch);
+            completed = true;
+        } finally {
+            if (!completed)
+                deleteRecursively(part);
+        }
+    }
+
+    private static void copyTree(File from, File to, boolean link) throws IOException {
+        if (!from.isDirectory()) {
+            if (!link || !platform.link(from, to))
+                copy(from, to);
+            return;
+        }
+
+        if (!to.mkdirs())
+            throw new IOException("can't create " + to);
+        File[] children = from.listFiles();
+        if (children == null)
+            throw new IOException("can't list " + from);
+        for (File child : children)
+            copyTree(child, new File(to, child.getName()), link);
+    }
+
+    /**
+     * <p>this is a download queue that survives the process. every request is appended to a log file
+     * before enqueue() returns, and every finished download appends a record that it's done. when the
+     * queue is opened again (after the process was killed, say) the requests that aren't done are
+     * queued again, and the ones that were partly downloaded resume from their journal.
+     * </p>
+     * <p>a worker thread hands the requests to submit(), at most maxConcurrent at a time, so a large
+     * batch doesn't fill the scheduler's queue. the log is compacted down to the pending requests when
+     * it's opened and once it has grown enough.
+     * </p>
+     * <p>a request with an expected digest whose file is already on disk and matches isn't downloaded
+     * again: the download finished but the process died before it was recorded.
+     * </p>
+     * <p>a request is only done when it's downloaded, or failed for good: an error status other than
+     * 408 and 429 below 500, a file that doesn't match its digest, or a request that can't be made
+     * at all, like one with a malformed url. a request that failed for a
+     * reason that may go away (the network, the server, an open circuit) stays pending and is
+     * handed to submit() again after a backoff, from 1 second up to 10 minutes. the callback gets
+     * the result of every attempt.
+     * </p>
+     */
+    public static class DownloadQueue implements Closeable {
+        private static final int MIN_COMPACT_RECORDS = 1000;
+        private static final long MIN_RETRY_DELAY = 1000;
+        private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+        private final File file;
+        private final DownloadCallback callback;
+        private final Semaphore slots;
+        private final Thread worker;
+        /**
+         * the files downloaded since the queue was last idle, under Config.SYNC_BATCH
+         */
+        private final SyncBatch syncBatch = new SyncBatch();
+
+        /**
+         * the requests that aren't done, by id, in the order they were added. the ones still waiting
+         * for the worker are in waiting too.
+         */
+        private final LinkedHashMap<Long, DownloadRequest> pending = new LinkedHashMap<Long, DownloadRequest>();
+        private final ArrayDeque<Long> waiting = new ArrayDeque<Long>();
+        /**
+         * the requests that failed and wait for their backoff: the failures in a row and the
+         * System.nanoTime() they go back to waiting, by id
+         */
+        private final Map<Long, Integer> failures = new HashMap<Long, Integer>();
+        private final Map<Long, Long> retryAt = new HashMap<Long, Long>();
+        private long nextId = 1;
+        private int records = 0;
+        private FileOutputStream logStream;
+        private Writer log;
+        private boolean closed = false;
+
+        private DownloadQueue(File file, int maxConcurrent, DownloadCallback callback) {
+            this.file = file;
+            this.callback = callback;
+            this.slots = new Semaphore(maxConcurrent);
+            this.worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "DownloadQueue");
+            worker.setDaemon(true);
+        }
+
+        /**
+         * opens the queue in the file, creating it if it doesn't exist, and starts downloading the
+         * requests that weren't done.
+         *
+         * @param maxConcurrent - how many of the queue's downloads are submitted at the same time
+         * @param callback      - gets the result of every download, from a download thread. can be null
+         */
+        public static DownloadQueue open(File file, int maxConcurrent, DownloadCallback callback) throws IOException {
+            if (maxConcurrent < 1)
+                throw new IllegalArgumentException("maxConcurrent < 1: " + maxConcurrent);
+
+            DownloadQueue queue = new DownloadQueue(file, maxConcurrent, callback);
+            synchronized (queue) {
+                queue.replay();
+                queue.skipVerified();
+                queue.compact();
+                queue.waiting.addAll(queue.pending.keySet());
+            }
+            log("queue - opened " + file + ", pending: " + queue.pending());
+            queue.worker.start();
+            return queue;
+        }
+
+        /**
+         * adds the requests to the queue. they're in the log when this returns. a StreamRequest
+         * can't be queued, its consumer doesn't survive the process.
+         */
+        public synchronized void enqueue(DownloadRequest... downloadRequests) throws IOException {
+            if (closed)
+                throw new IOException("queue closed");
+            for (DownloadRequest downloadRequest : downloadRequests) {
+                if (downloadRequest instanceof StreamRequest)
+                    throw new IllegalArgumentException("a StreamRequest can't be queued: " + downloadRequest.URL);
+            }
+            for (DownloadRequest downloadRequest : downloadRequests) {
+                long id = nextId++;
+                append(encode(id, downloadRequest));
+                pending.put(id, downloadRequest);
+                waiting.add(id);
+            }
+            sync();
+            notifyAll();
+        }
+
+        /**
+         * @return the number of requests that aren't done, including the ones downloading.
+         */
+        public synchronized int pending() {
+            return pending.size();
+        }
+
+        /**
+         * waits until all requests are done. requests that keep failing for a reason that may go
+         * away stay pending, so this can run out of time while the network is down.
+         *
+         * @return false if the time ran out first
+         */
+        public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!pending.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        /**
+         * stops the worker and closes the log. downloads that already started keep going, but aren't
+         * recorded as done: they're checked again the next time the queue is opened.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();
+                log.close();
+            }
+            worker.interrupt();
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    slots.acquire();
+                    final long id;
+                    final DownloadRequest downloadRequest;
+                    synchronized (this) {
+                        while (!closed) {
+                            long nextRetry = promoteRetries();
+                            if (!waiting.isEmpty())
+                                break;
+                            if (nextRetry == -1)
+                                wait();
+                            else
+                                TimeUnit.NANOSECONDS.timedWait(this, nextRetry);
+                        }
+                        if (closed)
+                            return;
+                        id = waiting.poll();
+                        downloadRequest = pending.get(id);
+                    }
+
+                    DownloadFuture future;
+                    try {
+                        future = submit(downloadRequest, null, syncBatch);
+                    } catch (RuntimeException e) {
+                        // a request submit() won't take fails for good, the worker goes on
+                        log("queue - can't submit " + downloadRequest.URL + ": " + e);
+                        slots.release();
+                        finished(id, downloadRequest, e);
+                        continue;
+                    }
+                    future.addCallback(new DownloadCallback() {
+                        @Override
+                        public void onFinished(DownloadRequest downloadRequest, Exception error) {
+                            slots.release();
+                            finished(id, downloadRequest, error);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        private void finished(long id, DownloadRequest downloadRequest, Exception error) {
+            boolean idle;
+            synchronized (this) {
+                if (!closed && isDone(error)) {
+                    try {
+                        append("D\t" + id + '\t' + (error == null ? "ok" : escape(String.valueOf(error.getMessage()))));
+                        log.flush();
+                        pending.remove(id);
+                        failures.remove(id);
+                        if (records > MIN_COMPACT_RECORDS && records > 2 * pending.size())
+                            compact();
+                    } catch (IOException e) {
+                        log("queue - can't write log: " + e.getMessage());
+                    }
+                } else if (!closed) {
+                    Integer failed = failures.get(id);
+                    failed = failed == null ? 1 : failed + 1;
+                    failures.put(id, failed);
+                    long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(failed - 1, 20));
+                    retryAt.put(id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+                    log("queue - " + downloadRequest.URL + " failed " + failed + " times, again in " + delay + "ms: " + error.getMessage());
+                }
+                // nothing is downloading, the rest waits for the worker or a retry
+                idle = waiting.isEmpty() && pending.size() == retryAt.size();
+                notifyAll();
+            }
+            // the disk isn't held up by the queue, enqueue() and the worker go on meanwhile
+            if (idle) {
+                try {
+                    syncBatch.sync();
+                } catch (IOException e) {
+                    log("queue - can't sync files: " + e.getMessage());
+                }
+            }
+            if (callback != null)
+                callback.onFinished(downloadRequest, error);
+        }
+
+        /**
+         * @return true if the request is done with this result: it was downloaded, or it won't
+         * ever be, like a file that isn't on the server or a url that can't be parsed (any
+         * RuntimeException).
+         */
+        static boolean isDone(Exception error) {
+            if (error == null || error instanceof DigestMismatchException || error instanceof RuntimeException)
+                return true;
+            if (error instanceof HttpError) {
+                int code = ((HttpError) error).code;
+                return code >= 400 && code < 500 && code != 408 && code != 429;
+            }
+            return false;
+        }
+
+        /**
+         * moves the failed requests whose backoff is over back to waiting. called with the monitor held.
+         *
+         * @return the nanoseconds until the next one is due, -1 if none is waiting for a retry
+         */
+        private long promoteRetries() {
+            long now = System.nanoTime();
+            long next = -1;
+            Iterator<Map.Entry<Long, Long>> iterator = retryAt.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, Long> entry = iterator.next();
+                long delay = entry.getValue() - now;
+                if (delay <= 0) {
+                    waiting.add(entry.getKey());
+                    iterator.remove();
+                } else if (next == -1 || delay < next) {
+                    next = delay;
+                }
+            }
+            return next;
+        }
+
+        /**
+         * reads the log: requests that were added and aren't done are pending. a record that was
+         * cut off by a crash, the last line without its line break, is ignored.
+         */
+        private void replay() throws IOException {
+            if (!file.exists())
+                return;
+
+            boolean lastLineComplete = endsWithLineBreak(file);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                while (line != null) {
+                    String next = reader.readLine();
+                    if (next == null && !lastLineComplete) {
+                        log("queue - skipping cut off record: " + line);
+                        break;
+                    }
+                    String[] fields = line.split("\t", -1);
+                    try {
+                        long id = Long.parseLong(fields[1]);
+                        nextId = Math.max(nextId, id + 1);
+                        if (fields[0].equals("A") && fields.length == 9)
+                            pending.put(id, decode(fields));
+                        else if (fields[0].equals("D") && fields.length == 3)
+                            pending.remove(id);
+                    } catch (RuntimeException e) {
+                        log("queue - skipping record: " + line);
+                    }
+                    line = next;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        private static boolean endsWithLineBreak(File file) throws IOException {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                if (input.length() == 0)
+                    return true;
+                input.seek(input.length() - 1);
+                return input.read() == '\n';
+            } finally {
+                input.close();
+            }
+        }
+
+        /**
+         * drops the pending requests whose file is already on disk and matches the expected digest.
+         */
+        private void skipVerified() {
+            Iterator<DownloadRequest> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                DownloadRequest downloadRequest = iterator.next();
+                if (downloadRequest.expectedDigest == null || downloadRequest.unpack != null)
+                    continue;
+                File target = new File(downloadRequest.storageLocation);
+                if (!target.isFile())
+                    continue;
+                try {
+                    StreamDigest digest = StreamDigest.create(downloadRequest.digestAlgorithm);
+                    RandomAccessFile input = new RandomAccessFile(target, "r");
+                    try {
+                        digestFile(input.getChannel(), 0, input.length(), digest);
+                    } finally {
+                        input.close();
+                    }
+                    if (digest.hex().equalsIgnoreCase(downloadRequest.expectedDigest)) {
+                        log("queue - already downloaded: " + downloadRequest.URL);
+                        iterator.remove();
+                    }
+                } catch (IOException e) {
+                    // download it again
+                }
+            }
+        }
+
+        /**
+         * rewrites the log with only the pending requests, to a temp file that's renamed over it.
+         */
+        private void compact() throws IOException {
+            if (log != null)
+                log.close();
+
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+                for (Map.Entry<Long, DownloadRequest> entry : pending.entrySet())
+                    writer.write(encode(entry.getKey(), entry.getValue()) + '\n');
+                writer.flush();
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            rename(temp, file);
+            records = pending.size();
+
+            logStream = new FileOutputStream(file, true);
+            log = new BufferedWriter(new OutputStreamWriter(logStream, "UTF-8"));
+        }
+
+        private void append(String record) throws IOException {
+            log.write(record + '\n');
+            records++;
+        }
+
+        /**
+         * flushes the log and makes sure it's on disk.
+         */
+        private void sync() throws IOException {
+            log.flush();
+            logStream.getFD().sync();
+        }
+
+        static String encode(long id, DownloadRequest downloadRequest) {
+            return "A\t" + id + '\t' + escape(downloadRequest.URL) + '\t' + escape(downloadRequest.storageLocation)
+                    + '\t' + escape(downloadRequest.digestAlgorithm) + '\t' + escape(downloadRequest.expectedDigest)
+                    + '\t' + downloadRequest.priority + '\t' + downloadRequest.maxBytesPerSecond
+                    + '\t' + escape(downloadRequest.unpack);
+        }
+
+        static DownloadRequest decode(String[] fields) {
+            DownloadRequest downloadRequest = new DownloadRequest(unescape(fields[2]), unescape(fields[3]),
+                    unescape(fields[4]), unescape(fields[5]));
+            downloadRequest.priority = Integer.parseInt(fields[6]);
+            downloadRequest.maxBytesPerSecond = Long.parseLong(fields[7]);
+            downloadRequest.unpack = unescape(fields[8]);
+            return downloadRequest;
+        }
+
+        /**
+         * null is written as an empty field and anything else starts with '='. backslashes, tabs
+         * and line breaks are escaped.
+         */
+        static String escape(String value) {
+            if (value == null)
+                return "";
+            return "=" + value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        static String unescape(String field) {
+            if (field.length() == 0)
+                return null;
+            StringBuilder value = new StringBuilder(field.length());
+            for (int i = 1; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '\\' && i + 1 < field.length()) {
+                    c = field.charAt(++i);
+                    c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+                }
+                value.append(c);
+            }
+            return value.toString();
+        }
+    }
+
+    /**
+     * <p>this class downloads a batch of small files with asynchronous okhttp calls. it's for batches
+     * where the round trips cost more than the bytes, like thousands of small files from one host:
+     * instead of a blocking call on a thread of its own for every file, every file is an enqueue()d
+     * call, and okhttp's dispatcher keeps up to Config.maxRequests of them in flight
+     * (Config.maxRequestsPerHost for each host). over http/2 (Config.http2Enabled, and a server that
+     * supports it) they're all streams on a single connection, so the batch is held back by the
+     * bandwidth instead of the latency. over http/1.1 every call in flight takes a connection.
+     * </p>
+     * <p>every file is written as soon as its response arrives, on okhttp's thread: to
+     * storageLocation + ".part", checked against expectedDigest and moved into place like any other
+     * download. failed files are retried according to Config.retryPolicy, and respect the host's
+     * CircuitBreaker. the batch doesn't go through the DownloadScheduler (its retries only wait on
+     * the scheduler's retry timer, they don't take a slot), and the files aren't
+     * resumed, segmented, cached, unpacked, deduplicated or measured for DownloadMetrics: for files
+     * this small none of it pays off. with Config.syncPolicy SYNC_BATCH the files are synced
+     * together, see SyncBatch, when the batch is done.
+     * </p>
+     * <p>the ProgressListener gets the progress of the whole batch: the bytes read by all files, and
+     * the total length once the length of every file is known (-1 until then). filesDone() and
+     * filesFailed() count the files. see readManifest() for the manifest file format.
+     * </p>
+     */
+    public static class BatchDownload {
+        private final int totalFiles;
+        private final SyncBatch syncBatch = new SyncBatch();
+        private final DownloadCallback callback;
+        private final ProgressListener listener;
+        private final AtomicInteger remaining;
+        private final AtomicInteger filesFailed = new AtomicInteger(0);
+        private final AtomicLong bytesRead = new AtomicLong(0);
+        private final AtomicLong contentLength = new AtomicLong(0);
+        private final AtomicInteger lengthsKnown = new AtomicInteger(0);
+        private final Set<Call> calls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean canceled = false;
+
+        private BatchDownload(int totalFiles, DownloadCallback callback, ProgressListener listener) {
+            this.totalFiles = totalFiles;
+            this.callback = callback;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(totalFiles);
+        }
+
+        /**
+         * starts downloading the files, highest priority first, and returns right away.
+         *
+         * @param callback - gets the result of every file as it's done, from okhttp's threads. can be
+         *                 null
+         * @param listener - gets the progress of the whole batch, from okhttp's threads. can be null
+         */
+        public static BatchDownload start(List<DownloadRequest> downloadRequests, DownloadCallback callback,
+                                          ProgressListener listener) {
+            List<DownloadRequest> sorted = new ArrayList<DownloadRequest>(downloadRequests);
+            Collections.sort(sorted, new Comparator<DownloadRequest>() {
+                @Override
+                public int compare(DownloadRequest a, DownloadRequest b) {
+                    return a.priority < b.priority ? 1 : a.priority > b.priority ? -1 : 0;
+                }
+            });
+
+            BatchDownload batch = new BatchDownload(sorted.size(), callback, listener);
+            log("batch - " + sorted.size() + " files");
+            if (sorted.isEmpty())
+                batch.batchDone();
+            for (DownloadRequest downloadRequest : sorted)
+                batch.new BatchFile(downloadRequest).run();
+            return batch;
+        }
+
+        /**
+         * <p>reads the list of files to download from a manifest. it has one file per line, with tab
+         * separated fields:
+         * <pre>
+         * url [path [digest]]
+         * </pre>
+         * path is relative to directory, the last part of the url's path if it's missing or empty.
+         * digest is a SHA-256 in hex, or algorithm:hex (like CRC32:1c291ca3). empty lines and lines
+         * starting with # are skipped. two lines can't have the same path, their files would be
+         * written to the same ".part" file at the same time.
+         * </p>
+         */
+        public static List<DownloadRequest> readManifest(File manifest, File directory) throws IOException {
+            String root = directory.getCanonicalPath() + File.separator;
+            List<DownloadRequest> downloadRequests = new ArrayList<DownloadRequest>();
+            // the line of every path, by canonical path
+            Map<String, Integer> paths = new HashMap<String, Integer>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+            try {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    if (line.trim().isEmpty() || line.startsWith("#"))
+                        continue;
+
+                    String[] fields = line.split("\t");
+                    String url = fields[0].trim();
+                    String path = fields.length > 1 ? fields[1].trim() : "";
+                    if (path.isEmpty()) {
+                        String urlPath = new URL(url).getPath();
+                        path = urlPath.substring(urlPath.lastIndexOf('/') + 1);
+                        if (path.isEmpty())
+                            throw new IOException("manifest line " + number + ": no file name in " + url);
+                    }
+
+                    // a path like ../something would end up outside of the directory
+                    File file = new File(directory, path);
+                    String canonicalPath = file.getCanonicalPath();
+                    if (!canonicalPath.startsWith(root))
+                        throw new IOException("manifest line " + number + ": path outside of the directory: " + path);
+                    Integer previous = paths.put(canonicalPath, number);
+                    if (previous != null)
+                        throw new IOException("manifest line " + number + ": same path as line " + previous + ": " + path);
+
+                    DownloadRequest downloadRequest = new DownloadRequest(url, file.getPath());
+                    if (fields.length > 2 && !fields[2].trim().isEmpty()) {
+                        String digest = fields[2].trim();
+                        int colon = digest.lastIndexOf(':');
+                        if (colon != -1) {
+                            downloadRequest.digestAlgorithm = digest.substring(0, colon);
+                            digest = digest.substring(colon + 1);
+                        }
+                        downloadRequest.expectedDigest = digest;
+                    }
+                    downloadRequests.add(downloadRequest);
+                }
+            } finally {
+                reader.close();
+            }
+            return downloadRequests;
+        }
+
+        public int totalFiles() {
+            return totalFiles;
+        }
+
+        /**
+         * @return the number of files that are done, downloaded or failed.
+         */
+        public int filesDone() {
+            return totalFiles - remaining.get();
+        }
+
+        public int filesFailed() {
+            return filesFailed.get();
+        }
+
+        public long bytesRead() {
+            return bytesRead.get();
+        }
+
+        /**
+         * @return the length of all files together, or -1 while it isn't known for all of them.
+         */
+        public long contentLength() {
+            return lengthsKnown.get() == totalFiles ? contentLength.get() : -1;
+        }
+
+        /**
+         * waits until all files are done.
+         *
+         * @return false if the timeout ran out first
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * cancels the calls in flight and the files that haven't started. they fail with a
+         * CancellationException.
+         */
+        public void cancel() {
+            canceled = true;
+            for (Call call : calls)
+                call.cancel();
+        }
+
+        private void reportProgress(boolean finished) {
+            if (listener != null)
+                listener.update(bytesRead.get(), contentLength(), finished);
+        }
+
+        private void batchDone() {
+            // the files of the batch, if Config.syncPolicy is SYNC_BATCH
+            try {
+                syncBatch.sync();
+            } catch (IOException e) {
+                log("batch - can't sync files: " + e.getMessage());
+            }
+            log("batch - done, " + filesFailed.get() + " of " + totalFiles + " failed");
+            reportProgress(true);
+            done.countDown();
+        }
+
+        /**
+         * this is a single file of the batch: its call, the callback of the call and its retries.
+         * the callback runs on one of okhttp's threads. a retry is started from the scheduler's
+         * retry timer with runLater(), all it does there is enqueue the call.
+         */
+        private class BatchFile implements Runnable, Callback, ProgressListener {
+            private final DownloadRequest downloadRequest;
+            private final String host;
+            private final RateLimiter rateLimiter;
+            private Call call = null;
+            private int attempt = 0;
+            private boolean lengthKnown = false;
+            // the bytes of this attempt that are in the batch's bytesRead
+            private long attemptBytes = 0;
+
+            BatchFile(DownloadRequest downloadRequest) {
+                this.downloadRequest = downloadRequest;
+                this.host = hostOf(downloadRequest.URL);
+                this.rateLimiter = downloadRequest.maxBytesPerSecond > 0 ? new RateLimiter(downloadRequest.maxBytesPerSecond) : null;
+            }
+
+            /**
+             * starts an attempt.
+             */
+            @Override
+            public void run() {
+                if (canceled) {
+                    finish(new CancellationException("batch canceled: " + downloadRequest.URL));
+                    return;
+                }
+                if (!getCircuitBreaker(host).allowRequest()) {
+                    finish(new IOException("circuit open for host: " + host));
+                    return;
+                }
+
+                Request request;
+                try {
+                    request = new Request.Builder()
+                            .url(downloadRequest.URL)
+                            .tag(new Transfer(this, rateLimiter))
+                            .build();
+                } catch (IllegalArgumentException e) {
+                    finish(e);
+                    return;
+                }
+                call = getClient().newCall(request);
+                calls.add(call);
+                // a cancel() that missed the call in calls
+                if (canceled)
+                    call.cancel();
+                call.enqueue(this);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                Exception error;
+                try {
+                    error = save(response);
+                } catch (Exception e) {
+                    error = e;
+                }
+                attemptDone(error);
+            }
+
+            @Override
+            public void onFailure(Request request, IOException e) {
+                attemptDone(e);
+            }
+
+            /**
+             * the progress of the body, added to the batch's.
+             */
+            @Override
+            public void update(long bytesRead, long contentLength, boolean done) {
+                BatchDownload.this.bytesRead.addAndGet(bytesRead - attemptBytes);
+                attemptBytes = bytesRead;
+                reportProgress(false);
+            }
+
+            /**
+             * writes the body to the partial file and moves it into place.
+             *
+             * @return the error response, or null if the file was saved
+             */
+            private Exception save(Response response) throws IOException {
+                if (!response.isSuccessful()) {
+                    response.body().close();
+                    return new HttpError(response);
+                }
+
+                long length = response.body().contentLength();
+                if (length >= 0 && !lengthKnown) {
+                    lengthKnown = true;
+                    contentLength.addAndGet(length);
+                    lengthsKnown.incrementAndGet();
+                }
+
+                File part = partialFile(downloadRequest);
+                File directory = part.getParentFile();
+                if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                    response.body().close();
+                    throw new IOException("can't create " + directory);
+                }
+
+                StreamDigest digest = downloadRequest.expectedDigest == null ? null : StreamDigest.create(downloadRequest.digestAlgorithm);
+                boolean completed = false;
+                RandomAccessFile output = openFile(part);
+                try {
+                    output.setLength(0);
+                    long end = writeBody(response.body().source(), output.getChannel(), 0, null, null, digest);
+                    output.setLength(end);
+                    completed = true;
+                } finally {
+                    output.close();
+                    response.body().close();
+                    if (!completed)
+                        part.delete();
+                }
+
+                if (digest != null && !digest.hex().equalsIgnoreCase(downloadRequest.expectedDigest)) {
+                    part.delete();
+                    throw new DigestMismatchException(downloadRequest.expectedDigest, digest.hex());
+                }
+                commit(part, new File(downloadRequest.storageLocation), syncBatch);
+                return null;
+            }
+
+            private void attemptDone(Exception error) {
+                calls.remove(call);
+                if (error != null && canceled)
+                    error = new CancellationException("batch canceled: " + downloadRequest.URL);
+
+                // a canceled call says nothing about the host, it only gives back a trial it held
+                RetryPolicy retryPolicy = getConfig().retryPolicy;
+                CircuitBreaker circuitBreaker = getCircuitBreaker(host);
+                if (error instanceof CancellationException)
+                    circuitBreaker.onCanceled();
+                else if (retryPolicy.isHostFailure(error))
+                    circuitBreaker.onFailure();
+                else
+                    circuitBreaker.onSuccess();
+
+                attempt++;
+                long delay = retryPolicy.retryDelay(error, attempt);
+                if (delay >= 0) {
+                    log("batch - retrying " + downloadRequest.URL + " in " + delay + "ms, attempt " + attempt
+                            + " failed: " + error.getMessage());
+                    // the next attempt reads the file from the start
+                    BatchDownload.this.bytesRead.addAndGet(-attemptBytes);
+                    attemptBytes = 0;
+                    getScheduler().runLater(this, delay);
+                    return;
+                }
+                finish(error);
+            }
+
+            private void finish(Exception error) {
+                if (error != null)
+                    filesFailed.incrementAndGet();
+                // a file that failed before its length was known adds nothing to the total
+                if (!lengthKnown) {
+                    lengthKnown = true;
+                    lengthsKnown.incrementAndGet();
+                }
+                if (callback != null) {
+                    try {
+                        callback.onFinished(downloadRequest, error);
+                    } catch (RuntimeException e) {
+                        log("batch callback - error: " + e.getMessage());
+                    }
+                }
+                if (remaining.decrementAndGet() == 0)
+                    batchDone();
+                else
+                    reportProgress(false);
+            }
+        }
+    }
+
+    /**
+     * <p>this is the work for a single file on the scheduler. a failed attempt is retried according
+     * to the RetryPolicy:
+     * <ul>
+     * <li>the retry is handed back to the scheduler after the backoff delay, so a waiting retry
+     * doesn't hold a download slot</li>
+     * <li>a resumable download picks up where the failed attempt stopped</li>
+     * <li>if the host's CircuitBreaker is open, the file fails right away without a request</li>
+     * </ul>
+     * the future is only completed after the last attempt. a canceled future stops the retries.
+     * if there is a Config.metricsListener, it gets the DownloadMetrics of all attempts then.
+     * </p>
+     */
+    private static class DownloadJob implements Runnable {
+        private final DownloadRequest downloadRequest;
+        private final ProgressListener listener;
+        private final DownloadFuture future;
+        private final MetricsListener metricsListener;
+        private final DownloadMetrics metrics;
+        private int attempt = 0;
+
+        DownloadJob(DownloadRequest downloadRequest, ProgressListener listener, DownloadFuture future) {
+            this.downloadRequest = downloadRequest;
+            this.listener = listener;
+            this.future = future;
+            this.metricsListener = getConfig().metricsListener;
+            this.metrics = metricsListener == null ? null : new DownloadMetrics(downloadRequest.URL, hostOf(downloadRequest.URL));
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone())
+                return;
+
+            String host = hostOf(downloadRequest.URL);
+            CircuitBreaker circuitBreaker = getCircuitBreaker(host);
+            if (!circuitBreaker.allowRequest()) {
+                finish(new IOException("circuit open for host: " + host));
+                return;
+            }
+
+            Exception error;
+            MetricsScope previous = MetricsScope.enter(metrics);
+            try {
+                if (metrics != null)
+                    metrics.attempts++;
+                ResponseBundle res = downloadFile(downloadRequest, listener, future.syncBatch);
+                error = res.Status ? null : res.Exception;
+            } catch (Exception e) {
+                log("downloadFile - error: " + e.getMessage());
+                error = e;
+            } finally {
+                MetricsScope.restore(previous);
+                if (metrics != null)
+                    metrics.endAttempt();
+            }
+
+            RetryPolicy retryPolicy = getConfig().retryPolicy;
+            if (retryPolicy.isHostFailure(error))
+                circuitBreaker.onFailure();
+            else
+                circuitBreaker.onSuccess();
+
+            attempt++;
+            long delay = retryPolicy.retryDelay(error, attempt);
+            if (delay >= 0) {
+                log("retrying " + downloadRequest.URL + " in " + delay + "ms, attempt " + attempt
+                        + " failed: " + error.getMessage());
+                getScheduler().schedule(host, downloadRequest.priority, this, delay);
+                return;
+            }
+            finish(error);
+        }
+
+        private void finish(Exception error) {
+            if (metrics != null) {
+                metrics.finish(error);
+                try {
+                    metricsListener.onDownloadFinished(metrics);
+                } catch (RuntimeException e) {
+                    log("metricsListener - error: " + e.getMessage());
+                }
+            }
+            future.complete(error);
+        }
+    }
+
+    /**
+     * <p>this is the result of a download started with submit(). it works like any Future: get()
+     * waits for the download and returns its DownloadRequest, or throws an ExecutionException with
+     * the error from the last attempt (an HttpError for an error response). DownloadCallbacks can
+     * be added to be told when it's done instead of waiting.
+     * </p>
+     * <p>cancel() completes the future right away and stops the retries. an attempt that's already
+     * running isn't interrupted, it finishes in the background.
+     * </p>
+     */
+    public static class DownloadFuture implements Future<DownloadRequest> {
+        private final DownloadRequest downloadRequest;
+        /**
+         * the batch the file is synced with, see submit()
+         */
+        final SyncBatch syncBatch;
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile SharedDownload shared = null;
+        private List<DownloadCallback> callbacks = new ArrayList<DownloadCallback>();
+        private boolean canceled = false;
+        private Exception error = null;
+
+        DownloadFuture(DownloadRequest downloadRequest, SyncBatch syncBatch) {
+            this.downloadRequest = downloadRequest;
+            this.syncBatch = syncBatch;
+        }
+
+        /**
+         * adds a callback that's called once the download is done, from the thread that completes
+         * it (a download thread), or right away on this thread if it's already done.
+         */
+        public void addCallback(DownloadCallback callback) {
+            synchronized (this) {
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            callback.onFinished(downloadRequest, error);
+        }
+
+        /**
+         * completes the future, unless it's already done, and calls the callbacks.
+         *
+         * @param error - null if the file was downloaded
+         */
+        boolean complete(Exception error) {
+            return complete(error, false);
+        }
+
+        /**
+         * the result and whether it was canceled are set together, so a cancel() that loses the
+         * race with the download doesn't leave a downloaded file looking canceled.
+         */
+        private boolean complete(Exception error, boolean canceled) {
+            List<DownloadCallback> callbacks;
+            synchronized (this) {
+                if (this.callbacks == null)
+                    return false;
+                this.error = error;
+                this.canceled = canceled;
+                callbacks = this.callbacks;
+                this.callbacks = null;
+            }
+            done.countDown();
+            for (DownloadCallback callback : callbacks)
+                callback.onFinished(downloadRequest, error);
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean completed = complete(new CancellationException("download canceled: " + downloadRequest.URL), true);
+            if (completed && shared != null)
+                shared.detach(this);
+            return completed;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return canceled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return callbacks == null;
+        }
+
+        @Override
+        public DownloadRequest get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public DownloadRequest get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private synchronized DownloadRequest result() throws ExecutionException {
+            if (canceled)
+                throw (CancellationException) error;
+            if (error != null)
+                throw new ExecutionException(error);
+            return downloadRequest;
+        }
+    }
+
+    /**
+     * @return the host part of the url, or the url itself if it can't be parsed. used to group
+     * requests for the per host limits.
+     */
+    static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * <p>this class tunes how many downloads run at the same time, see
+     * Config.adaptiveSampleInterval. it works like tcp congestion control: every sample interval it
+     * compares the throughput of all downloads with the previous sample, and the time to first byte
+     * with the lowest recent one, and moves the scheduler's limit.
+     * <ul>
+     * <li>it starts at 2 and doubles while throughput grows with it (slow start), then goes up by
+     * one at a time</li>
+     * <li>if the time to first byte gets more than twice the lowest (requests queue up somewhere in
+     * the network), or a step up made throughput drop, the limit is cut by a quarter</li>
+     * <li>the lowest time to first byte expires after LATENCY_WINDOW samples that didn't match it,
+     * like bbr's min rtt. then the limit is cut to a quarter for a sample, so the queues in the
+     * network drain and the latency without them is measured again, and put back. after the network got
+     * slower for good (from wifi to mobile, say) that's the new baseline, instead of every sample
+     * looking congested from then on</li>
+     * <li>after FLAT_STEPS steps up in a row that didn't add throughput the limit stays, and every
+     * PROBE_SAMPLES samples it's tried one higher, in case the network got better</li>
+     * </ul>
+     * samples taken while no download was waiting for a slot say nothing about the limit, they're
+     * skipped, and the next one is only the baseline for the one after. the limit stays between 1
+     * and Config.maxConcurrentDownloads.
+     * </p>
+     * <p>the limit is also the connection budget of segmented downloads: a file is split into at
+     * most limit / running downloads segments (and at most Config.segmentsPerFile).
+     * </p>
+     */
+    static class ConcurrencyController {
+        private static final int FLAT_STEPS = 3;
+        private static final int PROBE_SAMPLES = 5;
+        private static final int LATENCY_WINDOW = 20;
+
+        private final long intervalNanos;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong latencyNanos = new AtomicLong();
+        private final AtomicInteger latencyCount = new AtomicInteger();
+        private final AtomicBoolean sampling = new AtomicBoolean(false);
+        private volatile long sampleStart = System.nanoTime();
+        private volatile int limit;
+        private volatile int maxLimit;
+
+        // only touched by the thread taking a sample
+        private boolean slowStart = true;
+        private boolean steppedUp = false;
+        private int flatSteps = 0;
+        private int holdSamples = 0;
+        private double previousThroughput = -1;
+        private long minLatency = -1;
+        private int minLatencyAge = 0;
+        /**
+         * the limit before it was cut to measure the latency again, 0 when it wasn't
+         */
+        private int drainedFrom = 0;
+
+        ConcurrencyController(long intervalMillis, int maxLimit) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.maxLimit = maxLimit;
+            this.limit = Math.min(2, maxLimit);
+        }
+
+        int limit() {
+            return limit;
+        }
+
+        void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            limit = Math.min(limit, maxLimit);
+        }
+
+        /**
+         * @return how many segments a file that starts now can use.
+         */
+        int segmentsPerDownload() {
+            return Math.max(1, limit / Math.max(1, getScheduler().running()));
+        }
+
+        /**
+         * called when the headers of a response arrive.
+         */
+        void recordLatency(long nanos) {
+            latencyNanos.addAndGet(nanos);
+            latencyCount.incrementAndGet();
+        }
+
+        /**
+         * called on every read of a response body, from the download threads. the sample is taken
+         * here, by the first read after the interval.
+         */
+        void recordBytes(long byteCount) {
+            bytes.addAndGet(byteCount);
+            long now = System.nanoTime();
+            if (now - sampleStart >= intervalNanos && sampling.compareAndSet(false, true)) {
+                try {
+                    sample(now);
+                } finally {
+                    sampling.set(false);
+                }
+            }
+        }
+
+        private void sample(long now) {
+            double throughput = bytes.getAndSet(0) * 1e9 / (now - sampleStart);
+            int count = latencyCount.getAndSet(0);
+            long latency = count == 0 ? -1 : latencyNanos.getAndSet(0) / count;
+            sampleStart = now;
+
+            DownloadScheduler scheduler = getScheduler();
+            int oldLimit = limit;
+            int newLimit = update(throughput, latency, scheduler.queued() > 0);
+            if (newLimit != oldLimit) {
+                log("concurrency - " + oldLimit + " -> " + newLimit + ", throughput: " + (long) throughput + " bytes/s"
+                        + (latency >= 0 ? ", ttfb: " + TimeUnit.NANOSECONDS.toMillis(latency) + "ms" : ""));
+                scheduler.setMaxConcurrent(newLimit);
+            }
+        }
+
+        /**
+         * moves the limit for a sample. this is the whole decision, without the clock or the
+         * scheduler, so it can be fed made up samples.
+         *
+         * @param throughput - bytes per second of all downloads since the last sample
+         * @param latency    - the average time to first byte in nanoseconds, -1 if no response arrived
+         * @param waiting    - whether a download was waiting for a slot
+         * @return the new limit
+         */
+        int update(double throughput, long latency, boolean waiting) {
+            if (!waiting) {
+                // the next sample can't be compared with this one either
+                previousThroughput = -1;
+                steppedUp = false;
+                return limit;
+            }
+            if (drainedFrom > 0) {
+                // the sample at a quarter of the limit, its latency is the new lowest. throughput dropped
+                // because of the drain, the next sample is only the baseline
+                if (latency >= 0) {
+                    minLatency = latency;
+                    minLatencyAge = 0;
+                }
+                limit = Math.min(maxLimit, drainedFrom);
+                drainedFrom = 0;
+                previousThroughput = -1;
+                steppedUp = false;
+                return limit;
+            }
+            if (latency >= 0 && (minLatency < 0 || latency <= minLatency)) {
+                minLatency = latency;
+                minLatencyAge = 0;
+            } else if (++minLatencyAge >= LATENCY_WINDOW) {
+                minLatencyAge = 0;
+                if (limit > 1) {
+                    drainedFrom = limit;
+                    limit = Math.max(1, limit / 4);
+                    return limit;
+                }
+                // nothing to drain
+                minLatency = latency;
+            }
+            if (previousThroughput <= 0) {
+                // the first sample after an idle one is only the baseline
+                previousThroughput = throughput;
+                return limit;
+            }
+
+            double gain = throughput / previousThroughput;
+            previousThroughput = throughput;
+            boolean congested = latency >= 0 && latency > 2 * minLatency;
+            if (steppedUp)
+                flatSteps = gain < 1.02 ? flatSteps + 1 : 0;
+
+            int newLimit = limit;
+            if (congested || (steppedUp && gain < 0.8)) {
+                newLimit = limit * 3 / 4;
+                slowStart = false;
+                flatSteps = 0;
+            } else if (slowStart && gain >= 1.25) {
+                newLimit = limit * 2;
+            } else if (flatSteps < FLAT_STEPS || holdSamples >= PROBE_SAMPLES) {
+                newLimit = limit + 1;
+                slowStart = false;
+            }
+            newLimit = Math.max(1, Math.min(maxLimit, newLimit));
+            steppedUp = newLimit > limit;
+            holdSamples = newLimit == limit ? holdSamples + 1 : 0;
+            limit = newLimit;
+            return newLimit;
+        }
+    }
+
+    /**
+     * this is the size of the chunks read from the response body. it matches okio's segment size,
+     * a read never returns more than one segment.
+     */
+    static final int READ_SIZE = 8 * 1024;
+
+    /**
+     * this is the size of the buffer used when a file has to be read back
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * these are the buffers writeBody() uses on each thread, kept so every file doesn't allocate its own.
+     */
+    private static final ThreadLocal<IoBuffers> ioBuffers = new ThreadLocal<IoBuffers>();
+
+    private static class IoBuffers {
+        final byte[] chunk = new byte[READ_SIZE];
+        /**
+         * this is a read only view of chunk, for StreamConsumers
+         */
+        final ByteBuffer chunkView = ByteBuffer.wrap(chunk).asReadOnlyBuffer();
+        /**
+         * the body is collected in this array, and written to the file through its view
+         */
+        final byte[] batch;
+        final ByteBuffer batchView;
+
+        IoBuffers(int size) {
+            batch = new byte[size];
+            batchView = ByteBuffer.wrap(batch);
+        }
+    }
+
+    /**
+     * @return the buffers of this thread, with a batch of Config.ioBufferSize.
+     */
+    private static IoBuffers ioBuffers() {
+        int bufferSize = getConfig().ioBufferSize;
+        IoBuffers buffers = ioBuffers.get();
+        if (buffers == null || buffers.batch.length != bufferSize) {
+            buffers = new IoBuffers(bufferSize);
+            ioBuffers.set(buffers);
+        }
+        return buffers;
+    }
+
+    /**
+     * copies the whole body to the channel, starting at position. okio copies the body straight
+     * into a large array (Config.ioBufferSize), which is written with a single positional write when
+     * it's full instead of one write per okio segment. the bytes written are recorded in the journal
+     * (if there is one) after each write.
+     * <p>
+     * this isn't zero copy: every byte is copied from okio's segment into the array, and the jdk
+     * copies the array into a temporary direct buffer for the write. okio 1.x keeps its segments in
+     * heap arrays and can't read into a ByteBuffer, so a direct buffer of our own only moves the
+     * second copy, and FileChannel.transferFrom() over the source's InputStream copies more. see
+     * WriteBodyBenchmark, where the direct buffer is no faster and transferFrom() is less than half
+     * as fast.
+     * </p>
+     *
+     * @param canceled - if not null, the copy stops with an IOException once this is set
+     * @param digest   - if not null, every byte written is added to this digest
+     * @return the position after the last byte written
+     */
+    static long writeBody(BufferedSource source, FileChannel channel, long position, DownloadJournal journal,
+                          AtomicBoolean canceled, StreamDigest digest) throws IOException {
+        IoBuffers buffers = ioBuffers();
+        byte[] batch = buffers.batch;
+        ByteBuffer view = buffers.batchView;
+        int filled = 0;
+
+        while (true) {
+            int read;
+            try {
+                read = source.read(batch, filled, batch.length - filled);
+            } catch (IOException e) {
+                // keep what was received before the connection failed, a resumed download won't need it again
+                flush(view, filled, channel, position, journal);
+                throw e;
+            }
+            if (read == -1)
+                return flush(view, filled, channel, position, journal);
+
+            if (canceled != null && canceled.get())
+                throw new IOException("download canceled");
+
+            if (digest != null)
+                digest.update(batch, filled, read);
+            filled += read;
+            if (filled == batch.length) {
+                position = flush(view, filled, channel, position, journal);
+                filled = 0;
+            }
+        }
+    }
+
+    /**
+     * writes the first length bytes of the batch at position.
+     *
+     * @return the position after the last byte written
+     */
+    private static long flush(ByteBuffer view, int length, FileChannel channel, long position, DownloadJournal journal) throws IOException {
+        long start = position;
+        view.clear();
+        view.limit(length);
+        try {
+            while (view.hasRemaining())
+                position += channel.write(view, position);
+        } catch (IOException e) {
+            throw new LocalFileException(e);
+        }
+
+        if (journal != null && position > start) {
+            journal.addRange(start, position);
+            journal.saveIfNeeded();
+        }
+        return position;
+    }
+
+    /**
+     * reserves disk space for the file up to length through the Platform (posix_fallocate on android
+     * 5.0 and up), so a large download doesn't end up fragmented and a full disk is reported before
+     * the download starts. does nothing when Config.preallocateFiles is off, the length isn't known
+     * or the platform doesn't support it.
+     */
+    static void preallocate(RandomAccessFile file, long offset, long length) throws IOException {
+        if (!getConfig().preallocateFiles || length <= 0)
+            return;
+        try {
+            platform.preallocate(file, offset, length);
+        } catch (IOException e) {
+            throw new LocalFileException(e);
+        }
+    }
+
+    /**
+     * opens the file a download is written to, creating it if it isn't there.
+     */
+    static RandomAccessFile openFile(File file) throws LocalFileException {
+        try {
+            return new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            throw new LocalFileException(e);
+        }
+    }
+
+    /**
+     * @return the file a download is written to, storageLocation + ".part". it's only moved to
+     * storageLocation once it's complete (and matches its digest), see commit().
+     */
+    static File partialFile(DownloadRequest downloadRequest) {
+        return new File(downloadRequest.storageLocation + ".part");
+    }
+
+    /**
+     * moves a finished file, or a directory of unpacked files, into place. the rename is atomic,
+     * so readers of target see either the old file or the complete new one. a directory is
+     * replaced with replaceDirectory().
+     * <p>
+     * the rename itself is only durable once the directory holding target is synced too. with
+     * Config.syncPolicy SYNC_FILE the file is synced before the rename and its directory after it,
+     * so target survives a crash when this returns. with SYNC_BATCH target is added to syncBatch
+     * and it's only durable after syncBatch.sync(), or synced right away like SYNC_FILE if
+     * syncBatch is null. with SYNC_NONE a crash can leave the old file, or none.
+     * </p>
+     */
+    static void commit(File part, File target, SyncBatch syncBatch) throws IOException {
+        int syncPolicy = getConfig().syncPolicy;
+        boolean syncNow = syncPolicy == Config.SYNC_FILE || (syncPolicy == Config.SYNC_BATCH && syncBatch == null);
+        try {
+            if (syncNow)
+                fsync(part);
+            if (target.isDirectory())
+                replaceDirectory(part, target);
+            else
+                rename(part, target);
+            if (syncNow)
+                platform.syncDirectory(target.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            throw new LocalFileException(e);
+        }
+        if (!syncNow && syncPolicy == Config.SYNC_BATCH)
+            syncBatch.add(target);
+    }
+
+    /**
+     * <p>this is a batch of downloaded files that are synced to disk together, under
+     * Config.SYNC_BATCH: commit() adds every file of the batch, and sync() makes them and their
+     * directories durable. DownloadFiles(), JvmFileDownloader.downloadAll(), BatchDownload and
+     * DownloadQueue each sync a batch of their own when they're done. for your own submit() calls
+     * pass the same batch to all of them, and call sync() when they're finished.
+     * </p>
+     * <p>it's still one fsync for every file, sync() doesn't save any. what it saves is the
+     * waiting: the downloads don't stop for the disk, and by the end of the batch most of the
+     * bytes have been written back already, so the fsyncs are quick.
+     * </p>
+     */
+    public static class SyncBatch {
+        private final Set<File> files = new LinkedHashSet<File>();
+
+        synchronized void add(File file) {
+            files.add(file.getAbsoluteFile());
+        }
+
+        /**
+         * syncs the files added since the last call to disk, then every directory they're in, so
+         * they survive a crash. the first error is thrown once all the others were tried.
+         */
+        public void sync() throws IOException {
+            List<File> synced;
+            synchronized (this) {
+                synced = new ArrayList<File>(files);
+                files.clear();
+            }
+
+            IOException error = null;
+            Set<File> directories = new LinkedHashSet<File>();
+            for (File file : synced) {
+                try {
+                    fsync(file);
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+                directories.add(file.getParentFile());
+            }
+            for (File directory : directories) {
+                try {
+                    platform.syncDirectory(directory);
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * makes sure the file, or every file in the directory and the directories themselves, is on
+     * disk.
+     */
+    static void fsync(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                fsync(child);
+            platform.syncDirectory(file);
+            return;
+        }
+
+        RandomAccessFile output;
+        try {
+            output = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            // it was moved or deleted since it was downloaded
+            return;
+        }
+        try {
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * moves the directory from to to, which is a directory too. a directory can't be renamed over
+     * another one, so the old one is moved aside first and deleted once the new one is in place. if
+     * the new one can't be moved in, the old one is moved back. readers see the old directory or the
+     * new one, never a mix, but for a moment there's none.
+     */
+    private static void replaceDirectory(File from, File to) throws IOException {
+        File old = new File(to.getPath() + ".old");
+        // left over from a crash between the renames
+        deleteRecursively(old);
+        if (!to.renameTo(old))
+            throw new IOException("can't rename " + to + " to " + old);
+        if (!from.renameTo(to)) {
+            if (!old.renameTo(to))
+                log("commit - can't move " + old + " back to " + to);
+            throw new IOException("can't rename " + from + " to " + to);
+        }
+        deleteRecursively(old);
+    }
+
+    /**
+     * renames from to to, replacing to if it exists. the rename is atomic on the same file system.
+     */
+    static void rename(File from, File to) throws IOException {
+        if (from.renameTo(to))
+            return;
+        // some platforms won't rename over an existing file
+        if (!to.delete() || !from.renameTo(to))
+            throw new IOException("can't rename " + from + " to " + to);
+    }
+
+    /**
+     * adds bytes start..end (end exclusive) of the file to the digest.
+     */
+    static void digestFile(FileChannel channel, long start, long end, StreamDigest digest) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(bytes.length, end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new IOException("file ends at " + position + ", expected " + end);
+            digest.update(bytes, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * <p>this class computes the digest of a file while it's being saved, so a finished file doesn't
+     * have to be read back to check it. DownloadRequest.digestAlgorithm can be any MessageDigest
+     * algorithm ("SHA-256", "SHA-1", "MD5", ...) or "CRC32".
+     * </p>
+     */
+    static abstract class StreamDigest {
+        abstract void update(byte[] bytes, int offset, int length);
+
+        /**
+         * @return the digest in lower case hex.
+         */
+        abstract String hex();
+
+        static StreamDigest create(String algorithm) throws IOException {
+            if ("CRC32".equalsIgnoreCase(algorithm))
+                return new Crc32Digest();
+            try {
+                return new MessageStreamDigest(MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("unsupported digest algorithm: " + algorithm, e);
+            }
+        }
+    }
+
+    /**
+     * this source hashes everything read through it.
+     */
+    private static class DigestingSource extends ForwardingSource {
+        private final OutputStream digestStream;
+
+        DigestingSource(Source source, final StreamDigest digest) {
+            super(source);
+            this.digestStream = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    digest.update(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    digest.update(bytes, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0)
+                sink.copyTo(digestStream, sink.size() - read, read);
+            return read;
+        }
+    }
+
+    private static class MessageStreamDigest extends StreamDigest {
+        private final MessageDigest messageDigest;
+
+        MessageStreamDigest(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            messageDigest.update(bytes, offset, length);
+        }
+
+        @Override
+        String hex() {
+            return toHex(messageDigest.digest());
+        }
+    }
+
+    /**
+     * this is the crc32 digest. unlike a MessageDigest, the crc32 of two parts of a file can be
+     * combined into the crc32 of the whole file, so the segments of a segmented download are
+     * hashed separately.
+     */
+    static class Crc32Digest extends StreamDigest {
+        private final CRC32 crc32 = new CRC32();
+        private long value = -1;
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            crc32.update(bytes, offset, length);
+        }
+
+        /**
+         * replaces the value computed so far, used for a value combined from segments.
+         */
+        void setValue(long value) {
+            this.value = value;
+        }
+
+        long value() {
+            return value == -1 ? crc32.getValue() : value;
+        }
+
+        @Override
+        String hex() {
+            String hex = Long.toHexString(value());
+            return "00000000".substring(hex.length()) + hex;
+        }
+
+        /**
+         * @return the crc32 of two parts put together, given the crc32 of each part and the length
+         * of the second one. this is crc32_combine() from zlib.
+         */
+        static long combine(long crc1, long crc2, long length2) {
+            if (length2 <= 0)
+                return crc1;
+
+            long[] even = new long[32];
+            long[] odd = new long[32];
+
+            // the operator for one zero bit
+            odd[0] = 0xedb88320L;
+            long row = 1;
+            for (int n = 1; n < 32; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            // the operators for two and four zero bits
+            square(even, odd);
+            square(odd, even);
+
+            // apply length2 zeros to crc1, the first square gives the operator for one zero byte
+            do {
+                square(even, odd);
+                if ((length2 & 1) != 0)
+                    crc1 = times(even, crc1);
+                length2 >>= 1;
+                if (length2 == 0)
+                    break;
+
+                square(odd, even);
+                if ((length2 & 1) != 0)
+                    crc1 = times(odd, crc1);
+                length2 >>= 1;
+            } while (length2 != 0);
+
+            return crc1 ^ crc2;
+        }
+
+        private static long times(long[] matrix, long vector) {
+            long sum = 0;
+            for (int i = 0; vector != 0; i++, vector >>>= 1) {
+                if ((vector & 1) != 0)
+                    sum ^= matrix[i];
+            }
+            return sum;
+        }
+
+        private static void square(long[] square, long[] matrix) {
+            for (int n = 0; n < 32; n++)
+                square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return builder.toString();
+    }
+
+    /**
+     * this exception is reported through OnError when a downloaded file doesn't match
+     * DownloadRequest.expectedDigest. the file isn't moved into place. it's an IOException, so the
+     * download is retried from the start.
+     */
+    public static class DigestMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final String expected;
+        public final String actual;
+
+        public DigestMismatchException(String expected, String actual) {
+            super("digest mismatch, expected: " + expected + ", actual: " + actual);
+            this.expected = expected;
+            this.actual = actual;
+        }
+    }
+
+    /**
+     * this exception is an error of the local file a download is written to: it can't be opened,
+     * the disk is full, or it can't be moved into place. the cause is the IOException. it's retried
+     * like any IOException, but it doesn't count against the host.
+     */
+    public static class LocalFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LocalFileException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * this exception ends a StreamRequest whose StreamConsumer threw an IOException, which is the
+     * cause. it's never retried, and doesn't count against the host.
+     */
+    public static class ConsumerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ConsumerException(IOException cause) {
+            super("consumer failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * copies a file with FileChannel.transferTo, which lets the kernel do the copy.
+     */
+    static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long position = 0;
+                long length = source.size();
+                while (position < length)
+                    position += source.transferTo(position, length - position, target);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return {start, end, total} from a "bytes start-end/total" Content-Range header. total is -1
+     * if the server doesn't know it. null if the header is missing or can't be parsed.
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return null;
+        try {
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            long start = Long.parseLong(contentRange.substring(6, dash).trim());
+            long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[]{start, end, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the value as a long, or -1 if it's missing or not a number.
+     */
+    static long parseLong(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * this exception is reported through OnError when the server answers with an error status.
+     * code is the http status code, retryAfter is the Retry-After header in milliseconds (-1 if there
+     * isn't one).
+     */
+    public static class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int code;
+        public final long retryAfter;
+
+        public HttpError(Response response) {
+            super("error code: " + response.code());
+            this.code = response.code();
+            this.retryAfter = parseRetryAfter(response.header("Retry-After"));
+        }
+    }
+
+    /**
+     * @return the Retry-After header (seconds or an http date) in milliseconds from now, or -1 if
+     * it's missing or can't be parsed.
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null)
+            return -1;
+
+        long seconds = parseLong(retryAfter);
+        if (seconds >= 0)
+            return seconds * 1000;
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return Math.max(0, format.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * <p>this object holds the settings shared by all downloads. build it with Config.Builder and pass
+     * it to HttpFileDownloader.Configure().
+     * <ul>
+     * <li>maxConcurrentDownloads - the number of files downloaded at the same time</li>
+     * <li>maxDownloadsPerHost - the number of files downloaded at the same time from a single host</li>
+     * <li>maxQueuedDownloads - the number of files waiting to be downloaded before DownloadFiles'
+     * background thread stops handing out more work</li>
+     * <li>segmentsPerFile - the number of connections a single file is downloaded over, using range
+     * requests. 1 turns segmented downloads off</li>
+     * <li>minSegmentSize - the smallest segment (in bytes) a file is split into. files smaller than
+     * two segments are downloaded as a single stream</li>
+     * <li>ioBufferSize - the size (in bytes) of the array each download thread collects the body in
+     * before writing it to the file. it cuts the number of writes, not the copies, see writeBody()</li>
+     * <li>preallocateFiles - reserve the disk space for a file before downloading it, when the size
+     * is known (android 5.0 and up)</li>
+     * <li>maxIdleConnections, keepAliveDuration - the size of the shared okhttp connection pool and
+     * how long (in milliseconds) an idle connection is kept for reuse</li>
+     * <li>http2Enabled - allow http/2, so requests to the same host share one connection</li>
+     * <li>maxRequests, maxRequestsPerHost - the okhttp dispatcher limits for asynchronous calls</li>
+     * <li>connectTimeout, readTimeout, writeTimeout - the okhttp timeouts, in milliseconds</li>
+     * <li>progressInterval, progressMinBytes - OnProgress is called for a file at most once every
+     * progressInterval milliseconds, and only after at least progressMinBytes more bytes were read.
+     * the last progress of a file is always reported</li>
+     * <li>cacheDirectory, cacheMaxSize - keep a copy of downloaded files in cacheDirectory, up to
+     * cacheMaxSize bytes, and download them again only if they changed on the server. null (the
+     * default) turns the cache off</li>
+     * <li>retryPolicy - how often and after how long a failed download is tried again. the default
+     * makes 3 attempts, backing off from 1 second up to 30 seconds</li>
+     * <li>circuitBreakerThreshold, circuitBreakerCooldown - after this many failures in a row from a
+     * host, downloads from it fail right away for circuitBreakerCooldown milliseconds. 0 turns the
+     * circuit breaker off</li>
+     * <li>maxBytesPerSecond, maxBytesPerSecondPerHost - cap the download rate of all downloads
+     * together, and of all downloads from the same host. 0 (the default) is unlimited. a single
+     * file can be capped with DownloadRequest.maxBytesPerSecond</li>
+     * <li>executor - runs the downloads (and the segments of segmented downloads), null for the
+     * built-in thread pool. the scheduler does the limiting, so a cached thread pool, or a virtual
+     * thread per task on a recent jvm, works best. a bounded executor works too: a download runs
+     * the segments the executor hasn't started on its own thread</li>
+     * <li>metricsListener - gets the DownloadMetrics of every download when it's done, null (the
+     * default) for none. DownloadStats keeps histograms of them</li>
+     * <li>deduplicateDownloads - a file that's requested again while it's queued or downloading is
+     * downloaded once for all requests. on by default</li>
+     * <li>adaptiveSampleInterval - with this set, the number of downloads that run at the same time
+     * adapts to the network, up to maxConcurrentDownloads: every adaptiveSampleInterval
+     * milliseconds the throughput and latency are measured and the limit is moved up or down, see
+     * ConcurrencyController. 0 (the default) keeps maxConcurrentDownloads fixed</li>
+     * <li>syncPolicy - when downloaded files are synced to disk. SYNC_NONE (the default) leaves it to
+     * the os, SYNC_FILE syncs every file and its directory when it's moved into place, and
+     * SYNC_BATCH syncs the files of a batch at the end of it, see SyncBatch. files are always written to
+     * storageLocation + ".part" and renamed when complete, whatever the policy</li>
+     * <li>linkDuplicates - a deduplicated request for another storageLocation gets a hard link to
+     * the downloaded file instead of a copy, where the platform can. off by default: the files
+     * then share their contents, and changing one changes the other</li>
+     * <li>maxUnpackedSize, maxUnpackedEntries - a download with DownloadRequest.unpack fails once it
+     * unpacks to more than maxUnpackedSize bytes (1GB by default), or a zip has more than
+     * maxUnpackedEntries entries (10000 by default), so a small zip bomb can't fill the disk</li>
+     * </ul>
+     * changing any of the okhttp settings with Configure() replaces the shared client, and its pooled
+     * connections are closed.
+     * </p>
+     */
+    public static class Config {
+        public final int maxConcurrentDownloads;
+        public final int maxDownloadsPerHost;
+        public final int maxQueuedDownloads;
+        public final int segmentsPerFile;
+        public final long minSegmentSize;
+        public final int ioBufferSize;
+        public final boolean preallocateFiles;
+        public final int maxIdleConnections;
+        public final long keepAliveDuration;
+        public final boolean http2Enabled;
+        public final int maxRequests;
+        public final int maxRequestsPerHost;
+        public final long connectTimeout;
+        public final long readTimeout;
+        public final long writeTimeout;
+        public final long progressInterval;
+        public final long progressMinBytes;
+        public final File cacheDirectory;
+        public final long cacheMaxSize;
+        public final RetryPolicy retryPolicy;
+        public final int circuitBreakerThreshold;
+        public final long circuitBreakerCooldown;
+        public final long maxBytesPerSecond;
+        public final long maxBytesPerSecondPerHost;
+        public final Executor executor;
+        public final MetricsListener metricsListener;
+        public final boolean deduplicateDownloads;
+        public final boolean linkDuplicates;
+        public final int syncPolicy;
+        public final long adaptiveSampleInterval;
+        public final long maxUnpackedSize;
+        public final int maxUnpackedEntries;
+
+        public static final int SYNC_NONE = 0;
+        public static final int SYNC_FILE = 1;
+        public static final int SYNC_BATCH = 2;
+
+        private Config(Builder builder) {
+            this.maxConcurrentDownloads = builder.maxConcurrentDownloads;
+            this.maxDownloadsPerHost = builder.maxDownloadsPerHost;
+            this.maxQueuedDownloads = builder.maxQueuedDownloads;
+            this.segmentsPerFile = builder.segmentsPerFile;
+            this.minSegmentSize = builder.minSegmentSize;
+            this.ioBufferSize = builder.ioBufferSize;
+            this.preallocateFiles = builder.preallocateFiles;
+            this.maxIdleConnections = builder.maxIdleConnections;
+            this.keepAliveDuration = builder.keepAliveDuration;
+            this.http2Enabled = builder.http2Enabled;
+            this.maxRequests = builder.maxRequests;
+            this.maxRequestsPerHost = builder.maxRequestsPerHost;
+            this.connectTimeout = builder.connectTimeout;
+            this.readTimeout = builder.readTimeout;
+            this.writeTimeout = builder.writeTimeout;
+            this.progressInterval = builder.progressInterval;
+            this.progressMinBytes = builder.progressMinBytes;
+            this.cacheDirectory = builder.cacheDirectory;
+            this.cacheMaxSize = builder.cacheMaxSize;
+            this.retryPolicy = builder.retryPolicy;
+            this.circuitBreakerThreshold = builder.circuitBreakerThreshold;
+            this.circuitBreakerCooldown = builder.circuitBreakerCooldown;
+            this.maxBytesPerSecond = builder.maxBytesPerSecond;
+            this.maxBytesPerSecondPerHost = builder.maxBytesPerSecondPerHost;
+            this.executor = builder.executor;
+            this.metricsListener = builder.metricsListener;
+            this.deduplicateDownloads = builder.deduplicateDownloads;
+            this.linkDuplicates = builder.linkDuplicates;
+            this.syncPolicy = builder.syncPolicy;
+            this.adaptiveSampleInterval = builder.adaptiveSampleInterval;
+            this.maxUnpackedSize = builder.maxUnpackedSize;
+            this.maxUnpackedEntries = builder.maxUnpackedEntries;
+        }
+
+        /**
+         * @return true if the other configuration builds the same okhttp client as this one.
+         */
+        boolean sameClientSettings(Config other) {
+            return maxIdleConnections == other.maxIdleConnections
+                    && keepAliveDuration == other.keepAliveDuration
+                    && http2Enabled == other.http2Enabled
+                    && maxRequests == other.maxRequests
+                    && maxRequestsPerHost == other.maxRequestsPerHost
+                    && connectTimeout == other.connectTimeout
+                    && readTimeout == other.readTimeout
+                    && writeTimeout == other.writeTimeout;
+        }
+
+        /**
+         * @return true if the other configuration uses the same download cache as this one.
+         */
+        boolean sameCacheSettings(Config other) {
+            return (cacheDirectory == null ? other.cacheDirectory == null : cacheDirectory.equals(other.cacheDirectory))
+                    && cacheMaxSize == other.cacheMaxSize;
+        }
+
+        /**
+         * @return a builder initialized with this configuration's values.
+         */
+        public Builder newBuilder() {
+            Builder builder = new Builder();
+            builder.maxConcurrentDownloads = maxConcurrentDownloads;
+            builder.maxDownloadsPerHost = maxDownloadsPerHost;
+            builder.maxQueuedDownloads = maxQueuedDownloads;
+            builder.segmentsPerFile = segmentsPerFile;
+            builder.minSegmentSize = minSegmentSize;
+            builder.ioBufferSize = ioBufferSize;
+            builder.preallocateFiles = preallocateFiles;
+            builder.maxIdleConnections = maxIdleConnections;
+            builder.keepAliveDuration = keepAliveDuration;
+            builder.http2Enabled = http2Enabled;
+            builder.maxRequests = maxRequests;
+            builder.maxRequestsPerHost = maxRequestsPerHost;
+            builder.connectTimeout = connectTimeout;
+            builder.readTimeout = readTimeout;
+            builder.writeTimeout = writeTimeout;
+            builder.progressInterval = progressInterval;
+            builder.progressMinBytes = progressMinBytes;
+            builder.cacheDirectory = cacheDirectory;
+            builder.cacheMaxSize = cacheMaxSize;
+            builder.retryPolicy = retryPolicy;
+            builder.circuitBreakerThreshold = circuitBreakerThreshold;
+            builder.circuitBreakerCooldown = circuitBreakerCooldown;
+            builder.maxBytesPerSecond = maxBytesPerSecond;
+            builder.maxBytesPerSecondPerHost = maxBytesPerSecondPerHost;
+            builder.executor = executor;
+            builder.metricsListener = metricsListener;
+            builder.deduplicateDownloads = deduplicateDownloads;
+            builder.linkDuplicates = linkDuplicates;
+            builder.syncPolicy = syncPolicy;
+            builder.adaptiveSampleInterval = adaptiveSampleInterval;
+            builder.maxUnpackedSize = maxUnpackedSize;
+            builder.maxUnpackedEntries = maxUnpackedEntries;
+            return builder;
+        }
+
+        public static class Builder {
+            private int maxConcurrentDownloads = 4;
+            private int maxDownloadsPerHost = 4;
+            private int maxQueuedDownloads = 256;
+            private int segmentsPerFile = 1;
+            private long minSegmentSize = 1024 * 1024;
+            private int ioBufferSize = 256 * 1024;
+            private boolean preallocateFiles = false;
+            private int maxIdleConnections = 5;
+            private long keepAliveDuration = 5 * 60 * 1000;
+            private boolean http2Enabled = true;
+            private int maxRequests = 64;
+            private int maxRequestsPerHost = 5;
+            private long connectTimeout = 10 * 1000;
+            private long readTimeout = 10 * 1000;
+            private long writeTimeout = 10 * 1000;
+            private long progressInterval = 100;
+            private long progressMinBytes = 0;
+            private File cacheDirectory = null;
+            private long cacheMaxSize = 50 * 1024 * 1024;
+            private RetryPolicy retryPolicy = new RetryPolicy(3, 1000, 30 * 1000, 60 * 1000);
+            private int circuitBreakerThreshold = 5;
+            private long circuitBreakerCooldown = 30 * 1000;
+            private long maxBytesPerSecond = 0;
+            private long maxBytesPerSecondPerHost = 0;
+            private Executor executor = null;
+            private MetricsListener metricsListener = null;
+            private boolean deduplicateDownloads = true;
+            private boolean linkDuplicates = false;
+            private int syncPolicy = Config.SYNC_NONE;
+            private long adaptiveSampleInterval = 0;
+            private long maxUnpackedSize = 1024 * 1024 * 1024;
+            private int maxUnpackedEntries = 10000;
+
+            public Builder maxConcurrentDownloads(int maxConcurrentDownloads) {
+                if (maxConcurrentDownloads < 1)
+                    throw new IllegalArgumentException("maxConcurrentDownloads < 1: " + maxConcurrentDownloads);
+                this.maxConcurrentDownloads = maxConcurrentDownloads;
+                return this;
+            }
+
+            public Builder maxDownloadsPerHost(int maxDownloadsPerHost) {
+                if (maxDownloadsPerHost < 1)
+                    throw new IllegalArgumentException("maxDownloadsPerHost < 1: " + maxDownloadsPerHost);
+                this.maxDownloadsPerHost = maxDownloadsPerHost;
+                return this;
+            }
+
+            public Builder maxQueuedDownloads(int maxQueuedDownloads) {
+                if (maxQueuedDownloads < 1)
+                    throw new IllegalArgumentException("maxQueuedDownloads < 1: " + maxQueuedDownloads);
+                this.maxQueuedDownloads = maxQueuedDownloads;
+                return this;
+            }
+
+            public Builder segmentsPerFile(int segmentsPerFile) {
+                if (segmentsPerFile < 1)
+                    throw new IllegalArgumentException("segmentsPerFile < 1: " + segmentsPerFile);
+                this.segmentsPerFile = segmentsPerFile;
+                return this;
+            }
+
+            public Builder minSegmentSize(long minSegmentSize) {
+                if (minSegmentSize < 1)
+                    throw new IllegalArgumentException("minSegmentSize < 1: " + minSegmentSize);
+                this.minSegmentSize = minSegmentSize;
+                return this;
+            }
+
+            public Builder ioBufferSize(int ioBufferSize) {
+                if (ioBufferSize < READ_SIZE)
+                    throw new IllegalArgumentException("ioBufferSize < " + READ_SIZE + ": " + ioBufferSize);
+                this.ioBufferSize = ioBufferSize;
+                return this;
+            }
+
+            public Builder preallocateFiles(boolean preallocateFiles) {
+                this.preallocateFiles = preallocateFiles;
+                return this;
+            }
+
+            public Builder maxIdleConnections(int maxIdleConnections) {
+                if (maxIdleConnections < 0)
+                    throw new IllegalArgumentException("maxIdleConnections < 0: " + maxIdleConnections);
+                this.maxIdleConnections = maxIdleConnections;
+                return this;
+            }
+
+            public Builder keepAliveDuration(long duration, TimeUnit unit) {
+                if (duration < 0)
+                    throw new IllegalArgumentException("keepAliveDuration < 0: " + duration);
+                this.keepAliveDuration = unit.toMillis(duration);
+                return this;
+            }
+
+            public Builder http2Enabled(boolean http2Enabled) {
+                this.http2Enabled = http2Enabled;
+                return this;
+            }
+
+            public Builder maxRequests(int maxRequests) {
+                if (maxRequests < 1)
+                    throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+                this.maxRequests = maxRequests;
+                return this;
+            }
+
+            public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+                if (maxRequestsPerHost < 1)
+                    throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+                this.maxRequestsPerHost = maxRequestsPerHost;
+                return this;
+            }
+
+            public Builder connectTimeout(long timeout, TimeUnit unit) {
+                this.connectTimeout = timeoutMillis("connectTimeout", timeout, unit);
+                return this;
+            }
+
+            public Builder readTimeout(long timeout, TimeUnit unit) {
+                this.readTimeout = timeoutMillis("readTimeout", timeout, unit);
+                return this;
+            }
+
+            public Builder writeTimeout(long timeout, TimeUnit unit) {
+                this.writeTimeout = timeoutMillis("writeTimeout", timeout, unit);
+                return this;
+            }
+
+            public Builder progressInterval(long interval, TimeUnit unit) {
+                if (interval < 0)
+                    throw new IllegalArgumentException("progressInterval < 0: " + interval);
+                this.progressInterval = unit.toMillis(interval);
+                return this;
+            }
+
+            public Builder progressMinBytes(long progressMinBytes) {
+                if (progressMinBytes < 0)
+                    throw new IllegalArgumentException("progressMinBytes < 0: " + progressMinBytes);
+                this.progressMinBytes = progressMinBytes;
+                return this;
+            }
+
+            public Builder cacheDirectory(File cacheDirectory) {
+                this.cacheDirectory = cacheDirectory;
+                return this;
+            }
+
+            public Builder cacheMaxSize(long cacheMaxSize) {
+                if (cacheMaxSize < 0)
+                    throw new IllegalArgumentException("cacheMaxSize < 0: " + cacheMaxSize);
+                this.cacheMaxSize = cacheMaxSize;
+                return this;
+            }
+
+            public Builder retryPolicy(RetryPolicy retryPolicy) {
+                if (retryPolicy == null)
+                    throw new IllegalArgumentException("retryPolicy == null");
+                this.retryPolicy = retryPolicy;
+                return this;
+            }
+
+            public Builder circuitBreaker(int threshold, long cooldown, TimeUnit unit) {
+                if (threshold < 0)
+                    throw new IllegalArgumentException("circuitBreakerThreshold < 0: " + threshold);
+                this.circuitBreakerThreshold = threshold;
+                this.circuitBreakerCooldown = unit.toMillis(cooldown);
+                return this;
+            }
+
+            public Builder maxBytesPerSecond(long maxBytesPerSecond) {
+                if (maxBytesPerSecond < 0)
+                    throw new IllegalArgumentException("maxBytesPerSecond < 0: " + maxBytesPerSecond);
+                this.maxBytesPerSecond = maxBytesPerSecond;
+                return this;
+            }
+
+            public Builder maxBytesPerSecondPerHost(long maxBytesPerSecondPerHost) {
+                if (maxBytesPerSecondPerHost < 0)
+                    throw new IllegalArgumentException("maxBytesPerSecondPerHost < 0: " + maxBytesPerSecondPerHost);
+                this.maxBytesPerSecondPerHost = maxBytesPerSecondPerHost;
+                return this;
+            }
+
+            public Builder executor(Executor executor) {
+                this.executor = executor;
+                return this;
+            }
+
+            public Builder metricsListener(MetricsListener metricsListener) {
+                this.metricsListener = metricsListener;
+                return this;
+            }
+
+            public Builder deduplicateDownloads(boolean deduplicateDownloads) {
+                this.deduplicateDownloads = deduplicateDownloads;
+                return this;
+            }
+
+            public Builder linkDuplicates(boolean linkDuplicates) {
+                this.linkDuplicates = linkDuplicates;
+                return this;
+            }
+
+            /**
+             * @param sampleInterval - how often the concurrency is adapted, 0 to keep it fixed at
+             *                       maxConcurrentDownloads
+             */
+            public Builder adaptiveConcurrency(long sampleInterval, TimeUnit unit) {
+                this.adaptiveSampleInterval = timeoutMillis("adaptiveSampleInterval", sampleInterval, unit);
+                return this;
+            }
+
+            public Builder syncPolicy(int syncPolicy) {
+                if (syncPolicy != SYNC_NONE && syncPolicy != SYNC_FILE && syncPolicy != SYNC_BATCH)
+                    throw new IllegalArgumentException("unknown syncPolicy: " + syncPolicy);
+                this.syncPolicy = syncPolicy;
+                return this;
+            }
+
+            public Builder maxUnpackedSize(long maxUnpackedSize) {
+                if (maxUnpackedSize < 0)
+                    throw new IllegalArgumentException("maxUnpackedSize < 0: " + maxUnpackedSize);
+                this.maxUnpackedSize = maxUnpackedSize;
+                return this;
+            }
+
+            public Builder maxUnpackedEntries(int maxUnpackedEntries) {
+                if (maxUnpackedEntries < 1)
+                    throw new IllegalArgumentException("maxUnpackedEntries < 1: " + maxUnpackedEntries);
+                this.maxUnpackedEntries = maxUnpackedEntries;
+                return this;
+            }
+
+            private static long timeoutMillis(String name, long timeout, TimeUnit unit) {
+                if (timeout < 0)
+                    throw new IllegalArgumentException(name + " < 0: " + timeout);
+                return unit.toMillis(timeout);
+            }
+
+            public Config build() {
+                return new Config(this);
+            }
+        }
+    }
+
+    /**
+     * just a key value pair. sure Map.Entry<K, V> but, meh. also getters, setters, meh. It's a simple
+     * object.
+     */
+    public static class DownloadRequest {
+        /**
+         * this is the complete URL for the file to download
+         */
+        public String URL = "";
+        /**
+         * this is the absoluate path for where to store the downloaded file
+         */
+        public String storageLocation = "";
+        /**
+         * this is the algorithm of expectedDigest: any MessageDigest algorithm, or "CRC32"
+         */
+        public String digestAlgorithm = "SHA-256";
+        /**
+         * this is the digest (in hex) the downloaded file must match, null to not check it. the file
+         * is hashed while it downloads, and only moved to storageLocation if it matches.
+         */
+        public String expectedDigest = null;
+        /**
+         * downloads with a higher priority are started first, see PRIORITY_HIGH, PRIORITY_LOW
+         */
+        public int priority = PRIORITY_NORMAL;
+        /**
+         * this caps the download rate of this file, 0 for no cap. Config.maxBytesPerSecond and
+         * maxBytesPerSecondPerHost still apply.
+         */
+        public long maxBytesPerSecond = 0;
+        /**
+         * this unpacks the file while it downloads, null (the default) saves it as it is:
+         * UNPACK_GZIP or UNPACK_DEFLATE saves the inflated file to storageLocation, UNPACK_ZIP
+         * extracts the entries into the directory storageLocation. unpacked files aren't resumed,
+         * segmented or cached.
+         */
+        public String unpack = null;
+
+        public static final int PRIORITY_HIGH = 10;
+        public static final int PRIORITY_NORMAL = 0;
+        public static final int PRIORITY_LOW = -10;
+
+        public static final String UNPACK_GZIP = "gzip";
+        public static final String UNPACK_DEFLATE = "deflate";
+        public static final String UNPACK_ZIP = "zip";
+
+        public DownloadRequest(String URL, String storageLocation) {
+            this.URL = URL;
+            this.storageLocation = storageLocation;
+        }
+
+        public DownloadRequest(String URL, String storageLocation, String digestAlgorithm, String expectedDigest) {
+            this(URL, storageLocation);
+            this.digestAlgorithm = digestAlgorithm;
+            this.expectedDigest = expectedDigest;
+        }
+    }
+
+    /**
+     * <p>this is a download that goes to a StreamConsumer instead of a file. the body is handed to
+     * the consumer as it arrives, so it can be parsed or passed on before the download is done, and
+     * it never touches the disk. DownloadChannel is a consumer that's read like a channel from
+     * another thread.
+     * </p>
+     * <p>it's submitted like any other download, with the same retries, priorities and rate limits.
+     * a retry resumes where the last attempt stopped. expectedDigest is checked at the end, after the
+     * consumer got the bytes: don't trust them before onFinished(null). storageLocation and unpack
+     * aren't used, and a stream is never deduplicated or put in a DownloadQueue.
+     * </p>
+     */
+    public static class StreamRequest extends DownloadRequest {
+        public final StreamConsumer consumer;
+
+        // the state of the stream between attempts, reset by submit()
+        long delivered = 0;
+        String validator = null;
+        StreamDigest digest = null;
+        final AtomicBoolean canceled = new AtomicBoolean(false);
+
+        public StreamRequest(String URL, StreamConsumer consumer) {
+            super(URL, null);
+            this.consumer = consumer;
+        }
+
+        /**
+         * starts the stream over for a new download, and tells the consumer when the future is done.
+         */
+        void start(DownloadFuture future) {
+            delivered = 0;
+            validator = null;
+            digest = null;
+            canceled.set(false);
+            future.addCallback(new DownloadCallback() {
+                @Override
+                public void onFinished(DownloadRequest downloadRequest, Exception error) {
+                    if (error instanceof CancellationException)
+                        canceled.set(true);
+                    try {
+                        consumer.onFinished(error);
+                    } catch (RuntimeException e) {
+                        log("consumer - error: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>this object represents the download progress being reported.
+     * <ul>
+     * <li>currentFile - this is index (starting at 1) of the file this progress is for. several files
+     * are downloaded at the same time, so progress for different files is interleaved</li>
+     * <li>totalFiles - this is the number of total files</li>
+     * <li>currentFilename - this is the URL of the current file being downloaded</li>
+     * <li>currentFileBytesRead - this the number of bytes read so far for the current file</li>
+     * <li>currentFileProgress - this is the percentage of the current file downloaded so far, or -1 if
+     * the server didn't report the length of the file</li>
+     * <li>currentFileTotalBytes - this is the total length (in bytes) of the current file as
+     * reported by the server, or -1 if it's unknown</li>
+     * <li>filesCompleted - this is the number of files that were done (successfully or not) when
+     * this progress was reported</li>
+     * </ul>
+     * progress is reported at most every Config.progressInterval for each file, and the same object
+     * is reused for every report for a file. copy the values if you need to keep them.
+     * </p>
+     */
+    public static class DownloadProgress {
+        public int currentFile = 0;  // current file in list
+        public int totalFiles = 0;   // total files in list
+        public String currentFilename = "";
+        public int currentFileProgress = 0;
+        public long currentFileBytesRead = 0;
+        public long currentFileTotalBytes = 0;
+        public int filesCompleted = 0;
+
+        public DownloadProgress(int currentFile, int totalFiles, String currentFilename,
+                                int currentFileProgress, long currentFileBytesReady,
+                                long currentFileTotalBytes, int filesCompleted) {
+            this.currentFile = currentFile;
+            this.totalFiles = totalFiles;
+            this.currentFilename = currentFilename;
+            this.currentFileProgress = currentFileProgress;
+            this.currentFileBytesRead = currentFileBytesReady;
+            this.currentFileTotalBytes = currentFileTotalBytes;
+            this.filesCompleted = filesCompleted;
+        }
+    }
+
+    protected static class ResponseBundle {
+        public Boolean Status = false;
+        public Exception Exception = null;
+
+        public ResponseBundle(Boolean status, Exception e) {
+            this.Status = status;
+            this.Exception = e;
+        }
+    }
+
+    /**
+     * this is the tag of every download request. the network interceptor uses it to report the
+     * progress of the response body and to apply the rate limits to it.
+     */
+    static class Transfer {
+        /**
+         * gets the progress of the response body, can be null
+         */
+        final ProgressListener listener;
+        /**
+         * the rate limit of the request itself, can be null. the global and per host limits are
+         * added by the interceptor.
+         */
+        final RateLimiter rateLimiter;
+
+        Transfer(ProgressListener listener, RateLimiter rateLimiter) {
+            this.listener = listener;
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    /**
+     * <p>this class is a token bucket. it fills up at bytesPerSecond, up to a tenth of a second's
+     * worth of bytes (at least 16KB), so an idle download can only burst that far above the rate.
+     * </p>
+     * <p>bytes are taken after they're read, and the bucket can go into debt: the reader then waits
+     * until the debt is paid back. several downloads sharing a bucket each wait their turn, so
+     * together they get bytesPerSecond.
+     * </p>
+     */
+    static class RateLimiter {
+        private final long bytesPerSecond;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        RateLimiter(long bytesPerSecond) {
+            this(bytesPerSecond, System.nanoTime());
+        }
+
+        /**
+         * @param now - the System.nanoTime() the bucket starts full at
+         */
+        RateLimiter(long bytesPerSecond, long now) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(bytesPerSecond / 10, 16 * 1024);
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        /**
+         * takes bytes from the bucket.
+         *
+         * @return how long (in nanoseconds) the caller has to wait before reading on
+         */
+        long reserve(long bytes) {
+            return reserve(bytes, System.nanoTime());
+        }
+
+        synchronized long reserve(long bytes, long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * (bytesPerSecond / 1e9));
+            lastRefill = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+
+        /**
+         * takes bytes from all the limiters, and waits for the one that needs the longest.
+         */
+        static void acquire(RateLimiter[] rateLimiters, long bytes) throws IOException {
+            long waitNanos = 0;
+            for (RateLimiter rateLimiter : rateLimiters)
+                waitNanos = Math.max(waitNanos, rateLimiter.reserve(bytes));
+            if (waitNanos <= 0)
+                return;
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while rate limited");
+            }
+        }
+    }
+
+    /**
+     * this class is implemented per the following recipe. (almost copy)
+     * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java
+     * <p/>
+     * it also enforces the rate limits: after every read the bytes are taken from each RateLimiter,
+     * and the read waits as long as the most limiting one needs. the bytes and the transfer time go
+     * to the DownloadMetrics.
+     */
+    private static class ProgressResponseBody extends ResponseBody {
+        private final ResponseBody responseBody;
+        private final ProgressListener progressListener;
+        private final RateLimiter[] rateLimiters;
+        private final DownloadMetrics metrics;
+        private final ConcurrencyController controller;
+        private BufferedSource bufferedSource;
+
+        /**
+         * @param progressListener - can be null
+         * @param rateLimiters     - can be null
+         * @param metrics          - can be null
+         * @param controller       - can be null
+         */
+        public ProgressResponseBody(ResponseBody responseBody, ProgressListener progressListener,
+                                    RateLimiter[] rateLimiters, DownloadMetrics metrics, ConcurrencyController controller) {
+            this.responseBody = responseBody;
+            this.progressListener = progressListener;
+            this.rateLimiters = rateLimiters;
+            this.metrics = metrics;
+            this.controller = controller;
+            if (metrics != null)
+                metrics.transferStarted(System.nanoTime());
+        }
+
+        @Override
+        public MediaType contentType() {
+            return responseBody.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return responseBody.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() throws IOException {
+            if (bufferedSource == null) {
+                bufferedSource = Okio.buffer(source(responseBody.source()));
+            }
+            return bufferedSource;
+        }
+
+        private Source source(Source source) throws IOException {
+            // the length doesn't change, don't ask the body for it on every read
+            final long contentLength = responseBody.contentLength();
+            return new ForwardingSource(source) {
+                long totalBytesRead = 0L;
+
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long bytesRead = super.read(sink, byteCount);
+                    totalBytesRead += bytesRead != -1 ? bytesRead : 0;
+                    if (metrics != null && bytesRead > 0)
+                        metrics.recordRead(bytesRead, System.nanoTime());
+                    if (controller != null && bytesRead > 0)
+                        controller.recordBytes(bytesRead);
+                    if (rateLimiters != null && bytesRead > 0)
+                        RateLimiter.acquire(rateLimiters, bytesRead);
+                    if (progressListener != null)
+                        progressListener.update(totalBytesRead, contentLength, bytesRead == -1);
+                    // Log.d("ProgressResponseBody", "totayBytesRead: " + totalBytesRead + ", length: " + responseBody.contentLength());
+                    return bytesRead;
+                }
+            };
+        }
+    }
+
+    /**
+     * this interface is implemented per the following recipe.
+     * https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/com/squareup/okhttp/recipes/Progress.java
+     * <p/>
+     * update() is called on every read, from the download threads. contentLength is -1 if the
+     * server didn't send one. implementations shouldn't allocate or block.
+     */
+    public interface ProgressListener {
+        void update(long bytesRead, long contentLength, boolean done);
+    }
+
+    /**
+     * this interface gets the result of a download started with submit(), see
+     * DownloadFuture.addCallback().
+     */
+    public interface DownloadCallback {
+        /**
+         * @param downloadRequest - the file that was downloaded
+         * @param error           - null if the file was downloaded, otherwise the error from the last
+         *                        attempt (an HttpError for an error response)
+         */
+        void onFinished(DownloadRequest downloadRequest, Exception error);
+    }
+
+    /**
+     * <p>this interface gets the body of a StreamRequest while it downloads. onStart() and onData()
+     * are called from the download thread, one at a time and in order. a consumer that blocks holds
+     * back the download: nothing more is read from the network until it returns.
+     * </p>
+     * <p>an IOException thrown by the consumer ends the download with a ConsumerException, without
+     * retries.
+     * </p>
+     */
+    public interface StreamConsumer {
+        /**
+         * called at the start of every attempt, before its first onData().
+         *
+         * @param offset        - the position in the body of the next byte. a retry continues where
+         *                      the last attempt stopped, 0 means start over and forget the bytes
+         *                      received so far
+         * @param contentLength - the length of the whole body, -1 if the server didn't send it
+         */
+        void onStart(long offset, long contentLength) throws IOException;
+
+        /**
+         * @param data - the next bytes of the body. it's only valid during the call, the buffer is
+         *             reused for the next bytes
+         */
+        void onData(ByteBuffer data) throws IOException;
+
+        /**
+         * called once when the download is done, failed for good or was canceled, from the thread
+         * that completes the DownloadFuture. after a cancel it can come while onData() is running.
+         *
+         * @param error - null if the whole body was delivered (and matched expectedDigest)
+         */
+        void onFinished(Exception error);
+    }
+
+    /**
+     * <p>this is a ProgressListener that only reports once in a while. update() runs on the read path
+     * (from several threads for a segmented download) and only stores the numbers. at most once every
+     * Config.progressInterval, and only after Config.progressMinBytes more bytes, it calls report().
+     * the last update is always reported.
+     * </p>
+     */
+    public static abstract class ThrottledProgressListener implements ProgressListener {
+        private final long intervalNanos;
+        private final long minBytes;
+        private volatile long bytesRead = 0;
+        private volatile long contentLength = -1;
+        private volatile long nextReportTime = 0;
+        private volatile long nextReportBytes = 0;
+
+        protected ThrottledProgressListener() {
+            Config config = getConfig();
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.progressInterval);
+            this.minBytes = config.progressMinBytes;
+        }
+
+        @Override
+        public void update(long bytesRead, long contentLength, boolean done) {
+            update(bytesRead, contentLength, done, System.nanoTime());
+        }
+
+        void update(long bytesRead, long contentLength, boolean done, long now) {
+            this.bytesRead = bytesRead;
+            this.contentLength = contentLength;
+
+            if (!done && (now - nextReportTime < 0 || bytesRead < nextReportBytes))
+                return;
+            nextReportTime = now + intervalNanos;
+            nextReportBytes = bytesRead + minBytes;
+            report();
+        }
+
+        /**
+         * called when the progress should be reported, on the thread that called update(). it
+         * shouldn't block, read the numbers with bytesRead() and contentLength().
+         */
+        protected abstract void report();
+
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        public long contentLength() {
+            return contentLength;
+        }
+    }
+
+    /**
+     * this socket factory times the connects of the sockets okhttp creates. okhttp only calls
+     * createSocket() and connects the socket itself, the other methods aren't timed.
+     */
+    private static class TimedSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket() {
+            return new TimedSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    private static class TimedSocket extends Socket {
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            MetricsScope scope = MetricsScope.current();
+            if (scope == null) {
+                super.connect(endpoint, timeout);
+                return;
+            }
+
+            long start = System.nanoTime();
+            super.connect(endpoint, timeout);
+            long end = System.nanoTime();
+            scope.metrics.recordConnect(end - start);
+            scope.connectEnd = end;
+        }
+    }
+}
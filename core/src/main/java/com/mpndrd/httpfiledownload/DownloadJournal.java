@@ -0,0 +1,275 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.mpndrd.httpfiledownload.DownloadEngine.log;
+import static com.mpndrd.httpfiledownload.DownloadEngine.parseLong;
+
+/**
+ * <p>this class is the sidecar file (storageLocation + ".journal") that remembers which parts of
+ * a file have been downloaded, so an interrupted download can pick up where it stopped. it holds
+ * <ul>
+ * <li>the url, ETag, Last-Modified and length of the file when the download started</li>
+ * <li>the byte ranges that have been written to the file</li>
+ * </ul>
+ * the journal is saved every SAVE_INTERVAL bytes and when a download fails, and deleted when
+ * the download completes. a resumed request sends If-Range with the saved validator, so if the
+ * file changed on the server the whole file is sent again.
+ * </p>
+ */
+class DownloadJournal {
+    /**
+     * the journal is written to disk after this many new bytes
+     */
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+
+    private final File file;
+    private final String url;
+    private String etag = null;
+    private String lastModified = null;
+    private long contentLength = -1;
+
+    /**
+     * the downloaded ranges as {start, end} (end exclusive), sorted and merged
+     */
+    private final List<long[]> ranges = new ArrayList<long[]>();
+    private long unsavedBytes = 0;
+    /**
+     * save() writes the file with this lock held instead of the monitor, so segments (possibly
+     * virtual threads) that only record a range don't wait behind the disk
+     */
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    private DownloadJournal(File file, String url) {
+        this.file = file;
+        this.url = url;
+    }
+
+    /**
+     * reads the journal for the request, or returns an empty one if there isn't one (or it's for
+     * a different url or can't be read).
+     */
+    static DownloadJournal open(DownloadRequest downloadRequest) {
+        DownloadJournal journal = new DownloadJournal(new File(downloadRequest.storageLocation + ".journal"), downloadRequest.URL);
+        if (!journal.file.exists())
+            return journal;
+
+        try {
+            Properties properties = new Properties();
+            FileInputStream in = new FileInputStream(journal.file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+
+            if (!downloadRequest.URL.equals(properties.getProperty("url")))
+                return journal;
+
+            journal.etag = properties.getProperty("etag");
+            journal.lastModified = properties.getProperty("lastModified");
+            journal.contentLength = parseLong(properties.getProperty("length"));
+            String ranges = properties.getProperty("ranges", "");
+            for (String range : ranges.split(",")) {
+                int dash = range.indexOf('-');
+                if (dash > 0)
+                    journal.addRange(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+            }
+            journal.unsavedBytes = 0;
+        } catch (Exception e) {
+            log("journal - can't read " + journal.file + ": " + e.getMessage());
+            journal.ranges.clear();
+        }
+        return journal;
+    }
+
+    /**
+     * forgets everything downloaded so far and starts over with the given validators.
+     */
+    synchronized void reset(String etag, String lastModified, long contentLength) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+        ranges.clear();
+    }
+
+    /**
+     * @return true if the journal is for the same version of the file.
+     */
+    synchronized boolean matches(String etag, String lastModified, long contentLength) {
+        return validator() != null && this.contentLength == contentLength
+                && (etag == null ? this.etag == null : etag.equals(this.etag))
+                && (lastModified == null ? this.lastModified == null : lastModified.equals(this.lastModified));
+    }
+
+    synchronized String etag() {
+        return etag;
+    }
+
+    synchronized String lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the value for If-Range: the ETag if it's a strong one, otherwise Last-Modified.
+     * null means the download can't be resumed safely.
+     */
+    synchronized String validator() {
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return lastModified;
+    }
+
+    /**
+     * forgets the ranges if target doesn't hold them anymore: the partial file was deleted or
+     * cut short since the journal was saved. the validators stay.
+     *
+     * @return true if the ranges were dropped
+     */
+    synchronized boolean checkPartialFile(File target) {
+        if (ranges.isEmpty() || target.length() >= ranges.get(ranges.size() - 1)[1])
+            return false;
+        log("journal - partial file is shorter than the journal, starting over: " + target);
+        ranges.clear();
+        return true;
+    }
+
+    /**
+     * @return the number of bytes at the start of the file that are already downloaded, or 0 if
+     * the download has to start over.
+     */
+    synchronized long resumeOffset(File target) {
+        if (validator() == null || ranges.isEmpty() || ranges.get(0)[0] != 0)
+            return 0;
+
+        long offset = ranges.get(0)[1];
+        if (target.length() < offset || (contentLength > 0 && offset >= contentLength))
+            return 0;
+        return offset;
+    }
+
+    synchronized long completedBytes() {
+        long total = 0;
+        for (long[] range : ranges)
+            total += range[1] - range[0];
+        return total;
+    }
+
+    /**
+     * @return the ranges ({start, end}, end exclusive) of 0..length that aren't downloaded yet.
+     */
+    synchronized List<long[]> missingRanges(long length) {
+        List<long[]> missing = new ArrayList<long[]>();
+        long position = 0;
+        for (long[] range : ranges) {
+            if (range[0] > position)
+                missing.add(new long[]{position, Math.min(range[0], length)});
+            position = Math.max(position, range[1]);
+        }
+        if (position < length)
+            missing.add(new long[]{position, length});
+        return missing;
+    }
+
+    /**
+     * records that bytes start..end (end exclusive) have been written to the file.
+     */
+    synchronized void addRange(long start, long end) {
+        if (end <= start)
+            return;
+        unsavedBytes += end - start;
+
+        // find the first range that ends at or after start, and merge everything that overlaps
+        int i = 0;
+        while (i < ranges.size() && ranges.get(i)[1] < start)
+            i++;
+        while (i < ranges.size() && ranges.get(i)[0] <= end) {
+            long[] range = ranges.remove(i);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        ranges.add(i, new long[]{start, end});
+    }
+
+    void saveIfNeeded() throws IOException {
+        boolean needed;
+        synchronized (this) {
+            needed = unsavedBytes >= SAVE_INTERVAL;
+        }
+        if (needed)
+            save();
+    }
+
+    /**
+     * writes the journal to a temp file and renames it over the old one, so a crash while saving
+     * never leaves a half written journal. the journal is copied under the monitor and written
+     * outside of it.
+     */
+    void save() throws IOException {
+        saveLock.lock();
+        try {
+            Properties properties = new Properties();
+            long saved;
+            synchronized (this) {
+                properties.setProperty("url", url);
+                if (etag != null)
+                    properties.setProperty("etag", etag);
+                if (lastModified != null)
+                    properties.setProperty("lastModified", lastModified);
+                properties.setProperty("length", Long.toString(contentLength));
+
+                StringBuilder builder = new StringBuilder();
+                for (long[] range : ranges) {
+                    if (builder.length() > 0)
+                        builder.append(',');
+                    builder.append(range[0]).append('-').append(range[1]);
+                }
+                properties.setProperty("ranges", builder.toString());
+                saved = unsavedBytes;
+            }
+
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, "HttpFileDownloader journal");
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file))
+                throw new IOException("can't rename " + temp + " to " + file);
+            synchronized (this) {
+                unsavedBytes = Math.max(0, unsavedBytes - saved);
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * saves the journal, if there's anything worth saving, and only logs errors. used when a
+     * download fails and there's already an exception to report.
+     */
+    void saveQuietly() {
+        try {
+            if (validator() != null && completedBytes() > 0)
+                save();
+        } catch (IOException e) {
+            log("journal - can't save " + file + ": " + e.getMessage());
+        }
+    }
+
+    void delete() {
+        if (file.exists() && !file.delete())
+            log("journal - can't delete " + file);
+    }
+}
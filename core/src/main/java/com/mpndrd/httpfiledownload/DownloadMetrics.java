@@ -0,0 +1,226 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConsumerException;
+import com.mpndrd.httpfiledownload.DownloadEngine.DigestMismatchException;
+import com.mpndrd.httpfiledownload.DownloadEngine.HttpError;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * <p>this object has the metrics of one download, over all its attempts. Config.metricsListener
+ * gets it when the download is done. times are in nanoseconds, -1 if they weren't measured:
+ * <ul>
+ * <li>connectNanos, tlsNanos - the tcp connect and tls handshake of the first new connection. -1
+ * if every request went over a pooled connection. tlsNanos is an estimate: the time from the
+ * connect to the first request on the connection, which includes a bit of okhttp's own work.
+ * dns lookups aren't measured, okhttp 2 has no public hook for them</li>
+ * <li>ttfbNanos - time to first byte: from sending the first request to its response headers</li>
+ * <li>transferNanos - the time spent reading response bodies, added up over the attempts. the
+ * segments of a segmented download overlap, they count once</li>
+ * <li>totalNanos - from submit() to the end of the last attempt, including the time in the queue
+ * and the backoff between retries</li>
+ * </ul>
+ * </p>
+ */
+public class DownloadMetrics {
+    public final String url;
+    public final String host;
+    private final long startTime = System.nanoTime();
+    private final AtomicLong connectNanos = new AtomicLong(-1);
+    private final AtomicLong tlsNanos = new AtomicLong(-1);
+    private final AtomicLong ttfbNanos = new AtomicLong(-1);
+    private final AtomicLong transferStart = new AtomicLong(-1);
+    private final AtomicLong transferEnd = new AtomicLong(-1);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile int statusCode = -1;
+    private long transferNanos = -1;
+    private long totalNanos = -1;
+    private Exception failure;
+    volatile int attempts = 0;
+    volatile boolean cacheHit = false;
+
+    DownloadMetrics(String url, String host) {
+        this.url = url;
+        this.host = host;
+    }
+
+    /**
+     * @return the metrics of the download running on this thread, or null if it has none.
+     */
+    static DownloadMetrics current() {
+        MetricsScope scope = MetricsScope.current();
+        return scope == null ? null : scope.metrics;
+    }
+
+    void recordConnect(long nanos) {
+        connections.incrementAndGet();
+        connectNanos.compareAndSet(-1, nanos);
+    }
+
+    void recordTls(long nanos) {
+        tlsNanos.compareAndSet(-1, nanos);
+    }
+
+    void recordResponse(int code, long nanos) {
+        statusCode = code;
+        ttfbNanos.compareAndSet(-1, nanos);
+    }
+
+    void transferStarted(long now) {
+        transferStart.compareAndSet(-1, now);
+    }
+
+    /**
+     * called on every read of a response body, from the download threads.
+     */
+    void recordRead(long byteCount, long now) {
+        bytes.addAndGet(byteCount);
+        long end;
+        while ((end = transferEnd.get()) < now && !transferEnd.compareAndSet(end, now)) {
+            // another segment moved it, try again
+        }
+    }
+
+    /**
+     * adds the transfer time of the attempt that just ended, all its reads are done.
+     */
+    void endAttempt() {
+        long start = transferStart.getAndSet(-1);
+        long end = transferEnd.getAndSet(-1);
+        if (start != -1 && end != -1)
+            transferNanos = Math.max(transferNanos, 0) + (end - start);
+    }
+
+    void finish(Exception error) {
+        failure = error;
+        totalNanos = System.nanoTime() - startTime;
+    }
+
+    public long connectNanos() {
+        return connectNanos.get();
+    }
+
+    public long tlsNanos() {
+        return tlsNanos.get();
+    }
+
+    public long ttfbNanos() {
+        return ttfbNanos.get();
+    }
+
+    public long transferNanos() {
+        return transferNanos;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the number of body bytes read, over all attempts.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return bytes() over transferNanos(), or -1 if nothing was transferred.
+     */
+    public long bytesPerSecond() {
+        return transferNanos > 0 ? (long) (bytes.get() * 1e9 / transferNanos) : -1;
+    }
+
+    /**
+     * @return the number of new connections opened for the download.
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    public int attempts() {
+        return attempts;
+    }
+
+    public int retries() {
+        return Math.max(attempts - 1, 0);
+    }
+
+    /**
+     * @return true if the file came from the cache, because the server said it wasn't modified.
+     */
+    public boolean cacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * @return the status code of the last response, or -1 if there wasn't any.
+     */
+    public int statusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the error of the last attempt, or null if the file was downloaded.
+     */
+    public Exception failure() {
+        return failure;
+    }
+
+    /**
+     * @return a short name for the kind of failure, see causeOf(), or null if the file was
+     * downloaded.
+     */
+    public String failureCause() {
+        return causeOf(failure);
+    }
+
+    /**
+     * @return "http 404" and so on for error responses, "dns", "connect", "timeout", "tls",
+     * "digest", "canceled", "consumer", or the class name of any other error. null for no error.
+     */
+    public static String causeOf(Exception error) {
+        if (error == null)
+            return null;
+        if (error instanceof HttpError)
+            return "http " + ((HttpError) error).code;
+        if (error instanceof DigestMismatchException)
+            return "digest";
+        if (error instanceof UnknownHostException)
+            return "dns";
+        if (error instanceof ConnectException || error instanceof NoRouteToHostException)
+            return "connect";
+        if (error instanceof SocketTimeoutException)
+            return "timeout";
+        if (error instanceof SSLException)
+            return "tls";
+        if (error instanceof CancellationException)
+            return "canceled";
+        if (error instanceof ConsumerException)
+            return "consumer";
+        return error.getClass().getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        return url + ": " + (failure == null ? "ok" : failureCause())
+                + ", attempts " + attempts + (cacheHit ? ", cache hit" : "")
+                + ", connect " + millis(connectNanos())
+                + ", tls " + millis(tlsNanos()) + ", ttfb " + millis(ttfbNanos())
+                + ", transfer " + millis(transferNanos) + ", total " + millis(totalNanos)
+                + ", " + bytes() + " bytes, " + bytesPerSecond() + " bytes/s";
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+}
@@ -0,0 +1,315 @@
+package com.mpndrd.httpfiledownload;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>this class runs downloads in parallel on a pool of worker threads. it works like okhttp's
+ * Dispatcher:
+ * <ul>
+ * <li>at most maxConcurrent downloads run at the same time</li>
+ * <li>at most maxPerHost of those go to the same host, the rest wait in the ready queue
+ * without holding a thread</li>
+ * <li>at most maxQueued downloads wait in the ready queue. submit() blocks the caller when the
+ * queue is full</li>
+ * <li>there is a ready queue for every priority, and a free slot goes to the highest priority
+ * download that can run. a download only waits behind lower priorities when its host is at
+ * maxPerHost</li>
+ * <li>raisePriority() moves a download that's waiting up to a higher priority, and keeps it
+ * there for its retries</li>
+ * </ul>
+ * </p>
+ */
+class DownloadScheduler {
+    /**
+     * a lock instead of a monitor, so a virtual thread that waits in submit() doesn't pin its carrier
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private int maxConcurrent;
+    private int maxPerHost;
+    private int maxQueued;
+
+    /**
+     * these are the ready queues, highest priority first
+     */
+    private final TreeMap<Integer, Deque<ScheduledDownload>> readyDownloads =
+            new TreeMap<Integer, Deque<ScheduledDownload>>(Collections.<Integer>reverseOrder());
+    private int queued = 0;
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private int running = 0;
+    /**
+     * the priorities set with raisePriority(), they're forgotten with the download
+     */
+    private final Map<Runnable, Integer> raisedPriorities = new WeakHashMap<Runnable, Integer>();
+
+    /**
+     * this is the built-in thread pool, used when Config.executor isn't set. its threads are
+     * daemons, HttpFileDownloader also queues its files from here
+     */
+    static final ExecutorService defaultExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HttpFileDownloader #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Executor executor = defaultExecutor;
+
+    /**
+     * this timer hands delayed retries back to the scheduler
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HttpFileDownloader retry timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    DownloadScheduler(int maxConcurrent, int maxPerHost, int maxQueued) {
+        setLimits(maxConcurrent, maxPerHost, maxQueued);
+    }
+
+    void setLimits(int maxConcurrent, int maxPerHost, int maxQueued) {
+        lock.lock();
+        try {
+            this.maxConcurrent = maxConcurrent;
+            this.maxPerHost = maxPerHost;
+            this.maxQueued = maxQueued;
+            promote();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * changes only the number of downloads that run at the same time, for the
+     * ConcurrencyController.
+     */
+    void setMaxConcurrent(int maxConcurrent) {
+        lock.lock();
+        try {
+            this.maxConcurrent = maxConcurrent;
+            promote();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of downloads waiting to start.
+     */
+    int queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int running() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param executor - runs the downloads from now on, null for the built-in thread pool
+     */
+    void setExecutor(Executor executor) {
+        lock.lock();
+        try {
+            this.executor = executor == null ? defaultExecutor : executor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * queues a download and starts it as soon as the limits allow. blocks while the ready queue is full.
+     *
+     * @param host     - the host the download goes to
+     * @param priority - downloads with a higher priority start first
+     * @param download - the work to run on a worker thread
+     */
+    void submit(String host, int priority, Runnable download) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued >= maxQueued)
+                notFull.await();
+
+            enqueue(host, priority, download);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * queues a download after a delay. used for retries: they were already admitted once, so they
+     * don't wait for room in the ready queue.
+     */
+    void schedule(final String host, final int priority, final Runnable download, long delayMillis) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(host, priority, download);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * runs a task on the retry timer after a delay, without going through the ready queue or
+     * taking a slot. for retries of work that doesn't run on the scheduler, like the files of
+     * a BatchDownload. the task has to return quickly, it holds up the other retries.
+     */
+    void runLater(Runnable task, long delayMillis) {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void enqueue(String host, int priority, Runnable download) {
+        lock.lock();
+        try {
+            Integer raised = raisedPriorities.get(download);
+            if (raised != null && raised > priority)
+                priority = raised;
+            readyQueue(priority).add(new ScheduledDownload(host, download));
+            queued++;
+            promote();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * raises the priority of a download that was submitted or scheduled before. if it's waiting
+     * in a ready queue it moves to the queue of the new priority, and its retries are queued
+     * with it too. a lower priority than the download's own is ignored.
+     */
+    void raisePriority(Runnable download, int priority) {
+        lock.lock();
+        try {
+            Integer raised = raisedPriorities.get(download);
+            if (raised != null && raised >= priority)
+                return;
+            raisedPriorities.put(download, priority);
+
+            // the queues with a lower priority come after the new one
+            for (Deque<ScheduledDownload> queue : readyDownloads.tailMap(priority, false).values()) {
+                for (ScheduledDownload scheduled : queue) {
+                    if (scheduled.download == download) {
+                        queue.remove(scheduled);
+                        if (queue.isEmpty())
+                            readyDownloads.values().remove(queue);
+                        readyQueue(priority).add(scheduled);
+                        promote();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the ready queue for the priority, created if needed. called with the lock held.
+     */
+    private Deque<ScheduledDownload> readyQueue(int priority) {
+        Deque<ScheduledDownload> queue = readyDownloads.get(priority);
+        if (queue == null) {
+            queue = new ArrayDeque<ScheduledDownload>();
+            readyDownloads.put(priority, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * moves downloads from the ready queues to the executor while there's room for them, highest
+     * priority first. called with the lock held.
+     */
+    private void promote() {
+        Iterator<Deque<ScheduledDownload>> queues = readyDownloads.values().iterator();
+        while (running < maxConcurrent && queues.hasNext()) {
+            Deque<ScheduledDownload> queue = queues.next();
+            Iterator<ScheduledDownload> it = queue.iterator();
+            while (running < maxConcurrent && it.hasNext()) {
+                ScheduledDownload download = it.next();
+                Integer hostCount = runningPerHost.get(download.host);
+                if (hostCount != null && hostCount >= maxPerHost)
+                    continue;
+
+                it.remove();
+                queued--;
+                running++;
+                runningPerHost.put(download.host, hostCount == null ? 1 : hostCount + 1);
+                executor.execute(download);
+            }
+            if (queue.isEmpty())
+                queues.remove();
+        }
+        if (queued < maxQueued)
+            notFull.signalAll();
+    }
+
+    private void finished(ScheduledDownload download) {
+        lock.lock();
+        try {
+            running--;
+            Integer hostCount = runningPerHost.get(download.host);
+            if (hostCount == null || hostCount <= 1)
+                runningPerHost.remove(download.host);
+            else
+                runningPerHost.put(download.host, hostCount - 1);
+            promote();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class ScheduledDownload implements Runnable {
+        final String host;
+        final Runnable download;
+
+        ScheduledDownload(String host, Runnable download) {
+            this.host = host;
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            try {
+                download.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+}
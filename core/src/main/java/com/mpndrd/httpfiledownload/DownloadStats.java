@@ -0,0 +1,141 @@
+package com.mpndrd.httpfiledownload;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>this is a MetricsListener that keeps aggregate numbers of all downloads: counters, failure
+ * causes and Histograms of the times (in microseconds) and throughput (in bytes per second).
+ * with perHost, every host also gets its own DownloadStats, to find slow mirrors. it's safe to
+ * read while downloads are running, nothing takes a lock.
+ * </p>
+ * <p>each DownloadStats takes about 45KB, mostly for the histograms.
+ * </p>
+ */
+public class DownloadStats implements MetricsListener {
+    public final Histogram connect = new Histogram();
+    public final Histogram tls = new Histogram();
+    public final Histogram ttfb = new Histogram();
+    public final Histogram transfer = new Histogram();
+    public final Histogram total = new Histogram();
+    public final Histogram throughput = new Histogram();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> failureCauses = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, DownloadStats> hosts;
+
+    public DownloadStats() {
+        this(false);
+    }
+
+    /**
+     * @param perHost - also keep separate stats for every host
+     */
+    public DownloadStats(boolean perHost) {
+        this.hosts = perHost ? new ConcurrentHashMap<String, DownloadStats>() : null;
+    }
+
+    @Override
+    public void onDownloadFinished(DownloadMetrics metrics) {
+        record(metrics);
+        if (hosts == null)
+            return;
+
+        DownloadStats hostStats = hosts.get(metrics.host);
+        if (hostStats == null) {
+            DownloadStats newStats = new DownloadStats(false);
+            hostStats = hosts.putIfAbsent(metrics.host, newStats);
+            if (hostStats == null)
+                hostStats = newStats;
+        }
+        hostStats.record(metrics);
+    }
+
+    private void record(DownloadMetrics metrics) {
+        downloads.incrementAndGet();
+        retries.addAndGet(metrics.retries());
+        bytes.addAndGet(metrics.bytes());
+        if (metrics.cacheHit())
+            cacheHits.incrementAndGet();
+
+        String cause = metrics.failureCause();
+        if (cause != null) {
+            failures.incrementAndGet();
+            AtomicLong count = failureCauses.get(cause);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = failureCauses.putIfAbsent(cause, newCount);
+                if (count == null)
+                    count = newCount;
+            }
+            count.incrementAndGet();
+        }
+
+        recordMicros(connect, metrics.connectNanos());
+        recordMicros(tls, metrics.tlsNanos());
+        recordMicros(ttfb, metrics.ttfbNanos());
+        recordMicros(transfer, metrics.transferNanos());
+        recordMicros(total, metrics.totalNanos());
+        if (metrics.bytesPerSecond() >= 0)
+            throughput.record(metrics.bytesPerSecond());
+    }
+
+    private static void recordMicros(Histogram histogram, long nanos) {
+        if (nanos >= 0)
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public long downloads() {
+        return downloads.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long retries() {
+        return retries.get();
+    }
+
+    public long cacheHits() {
+        return cacheHits.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of failed downloads by DownloadMetrics.causeOf() their error.
+     */
+    public Map<String, Long> failureCauses() {
+        Map<String, Long> causes = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : failureCauses.entrySet())
+            causes.put(entry.getKey(), entry.getValue().get());
+        return causes;
+    }
+
+    /**
+     * @return the stats of every host, or an empty map if they aren't kept per host.
+     */
+    public Map<String, DownloadStats> hosts() {
+        if (hosts == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(new TreeMap<String, DownloadStats>(hosts));
+    }
+
+    @Override
+    public String toString() {
+        return downloads() + " downloads, " + failures() + " failed " + failureCauses()
+                + ", " + retries() + " retries, " + cacheHits() + " cache hits, " + bytes() + " bytes"
+                + "; ttfb us " + ttfb + "; transfer us " + transfer + "; bytes/s " + throughput;
+    }
+}
@@ -0,0 +1,86 @@
+package com.mpndrd.httpfiledownload;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>this is a histogram of non-negative longs, recorded without locks so it can be updated from
+ * any number of threads. like HdrHistogram, the buckets are log-linear: every power of two is
+ * split into 16 buckets, so a recorded value is off by at most 1/16 (6.25%) and the whole range
+ * of long fits in 960 buckets.
+ * </p>
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("value < 0: " + value);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while ((currentMax = max.get()) < value && !max.compareAndSet(currentMax, value)) {
+            // another thread moved it, try again
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return the value below which percentile percent of the recorded values are (the top of
+     * its bucket), or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return i + 1 < counts.length() ? Math.min(bucketStart(i + 1) - 1, max.get()) : max.get();
+        }
+        return max.get();
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long bucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    @Override
+    public String toString() {
+        return "n " + count() + ", p50 " + percentile(50) + ", p90 " + percentile(90)
+                + ", p99 " + percentile(99) + ", max " + max();
+    }
+}
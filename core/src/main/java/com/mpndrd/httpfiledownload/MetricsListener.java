@@ -0,0 +1,12 @@
+package com.mpndrd.httpfiledownload;
+
+/**
+ * this interface gets the metrics of every download, see Config.metricsListener.
+ */
+public interface MetricsListener {
+    /**
+     * called once per download when it's done, from the thread that finished it (a download
+     * thread). it shouldn't block.
+     */
+    void onDownloadFinished(DownloadMetrics metrics);
+}
@@ -0,0 +1,38 @@
+package com.mpndrd.httpfiledownload;
+
+/**
+ * <p>this is the DownloadMetrics of the download running on a thread, so the network code can
+ * find it. connectEnd is when this thread last connected a socket, to estimate the tls handshake
+ * that follows.
+ * </p>
+ */
+final class MetricsScope {
+    private static final ThreadLocal<MetricsScope> current = new ThreadLocal<MetricsScope>();
+    final DownloadMetrics metrics;
+    long connectEnd = -1;
+
+    private MetricsScope(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    static MetricsScope current() {
+        return current.get();
+    }
+
+    /**
+     * @param metrics - can be null, then nothing is measured on this thread
+     * @return the scope it replaces, pass it to restore() when done
+     */
+    static MetricsScope enter(DownloadMetrics metrics) {
+        MetricsScope previous = current.get();
+        current.set(metrics == null ? null : new MetricsScope(metrics));
+        return previous;
+    }
+
+    static void restore(MetricsScope previous) {
+        if (previous == null)
+            current.remove();
+        else
+            current.set(previous);
+    }
+}
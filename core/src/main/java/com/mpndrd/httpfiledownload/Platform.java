@@ -0,0 +1,52 @@
+package com.mpndrd.httpfiledownload;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * <p>this class is the platform the engine runs on. the default only uses java.io, so it works on
+ * any android version: it logs nothing, files aren't preallocated and hard links aren't made.
+ * HttpFileDownloader and JvmFileDownloader install their own.
+ * </p>
+ */
+public class Platform {
+    protected void log(String message) {
+    }
+
+    /**
+     * reserves disk space for length bytes of the file from offset. throws an IOException if
+     * there isn't enough space, and does nothing if the platform can't do it.
+     */
+    protected void preallocate(RandomAccessFile file, long offset, long length) throws IOException {
+    }
+
+    /**
+     * makes to a hard link to the file from.
+     *
+     * @return false if the platform can't, the file is copied then
+     */
+    protected boolean link(File from, File to) {
+        return false;
+    }
+
+    /**
+     * makes sure the entries of the directory, like a file that was just renamed into it, are
+     * on disk. does nothing where a directory can't be opened to sync it, java.io can't open one
+     * on most systems.
+     */
+    protected void syncDirectory(File directory) throws IOException {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(directory, "r");
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConsumerException;
+import com.mpndrd.httpfiledownload.DownloadEngine.DigestMismatchException;
+import com.mpndrd.httpfiledownload.DownloadEngine.HttpError;
+import com.mpndrd.httpfiledownload.DownloadEngine.LocalFileException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * <p>this class decides if and when a failed download is tried again.
+ * <ul>
+ * <li>IOExceptions (connection failures, timeouts, truncated bodies) and the status codes 408,
+ * 429, 500, 502, 503 and 504 are retried, other errors aren't</li>
+ * <li>the delay grows exponentially from baseDelay up to maxDelay, with full jitter: the actual
+ * delay is a random value between 0 and the exponential delay, so failed downloads don't all
+ * come back at the same time</li>
+ * <li>a Retry-After header on a 429 or 503 is honored. if it asks for more than maxRetryAfter
+ * the download isn't retried</li>
+ * </ul>
+ * </p>
+ */
+public class RetryPolicy {
+    public final int maxAttempts;
+    public final long baseDelay;
+    public final long maxDelay;
+    public final long maxRetryAfter;
+
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts   - the number of attempts per file, including the first one. 1 turns retries off
+     * @param baseDelay     - the delay (in milliseconds) before the first retry, before jitter
+     * @param maxDelay      - the longest delay (in milliseconds) between attempts, before jitter
+     * @param maxRetryAfter - the longest Retry-After (in milliseconds) the policy is willing to wait
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, long maxRetryAfter) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts < 1: " + maxAttempts);
+        if (baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("bad delays: " + baseDelay + ", " + maxDelay);
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    /**
+     * @param error   - the error of the attempt that just finished, null if it succeeded
+     * @param attempt - the number of attempts made so far
+     * @return the delay (in milliseconds) before the next attempt, or -1 to give up.
+     */
+    long retryDelay(Exception error, int attempt) {
+        if (error == null || attempt >= maxAttempts || !isRetryable(error))
+            return -1;
+
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        long jittered;
+        synchronized (random) {
+            jittered = (long) (random.nextDouble() * (delay + 1));
+        }
+
+        if (error instanceof HttpError && ((HttpError) error).retryAfter >= 0) {
+            long retryAfter = ((HttpError) error).retryAfter;
+            if (retryAfter > maxRetryAfter)
+                return -1;
+            return Math.max(retryAfter, jittered);
+        }
+        return jittered;
+    }
+
+    boolean isRetryable(Exception error) {
+        if (error instanceof ConsumerException)
+            return false;
+        if (error instanceof IOException)
+            return true;
+        if (error instanceof HttpError) {
+            switch (((HttpError) error).code) {
+                case 408:
+                case 429:
+                case 500:
+                case 502:
+                case 503:
+                case 504:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the error says the host is down or overloaded, and counts against its
+     * CircuitBreaker. a 404 means the host is fine, the file just isn't there. so do errors of
+     * our own: a consumer that failed, a bad digest (the host answered, the bytes were wrong)
+     * and a local file that couldn't be written.
+     */
+    boolean isHostFailure(Exception error) {
+        if (error == null)
+            return false;
+        if (error instanceof HttpError)
+            return ((HttpError) error).code >= 500 || ((HttpError) error).code == 429;
+        return error instanceof IOException && !(error instanceof ConsumerException)
+                && !(error instanceof DigestMismatchException) && !(error instanceof LocalFileException);
+    }
+}
@@ -0,0 +1,360 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConcurrencyController;
+import com.mpndrd.httpfiledownload.DownloadEngine.Config;
+import com.mpndrd.httpfiledownload.DownloadEngine.Crc32Digest;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.ProgressListener;
+import com.mpndrd.httpfiledownload.DownloadEngine.RateLimiter;
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamDigest;
+import com.mpndrd.httpfiledownload.DownloadEngine.Transfer;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.mpndrd.httpfiledownload.DownloadEngine.digestFile;
+import static com.mpndrd.httpfiledownload.DownloadEngine.getConcurrencyController;
+import static com.mpndrd.httpfiledownload.DownloadEngine.getConfig;
+import static com.mpndrd.httpfiledownload.DownloadEngine.log;
+import static com.mpndrd.httpfiledownload.DownloadEngine.openFile;
+import static com.mpndrd.httpfiledownload.DownloadEngine.parseLong;
+import static com.mpndrd.httpfiledownload.DownloadEngine.partialFile;
+import static com.mpndrd.httpfiledownload.DownloadEngine.preallocate;
+import static com.mpndrd.httpfiledownload.DownloadEngine.writeBody;
+
+/**
+ * <p>this class downloads a single file over several connections at once using http range
+ * requests.
+ * <ul>
+ * <li>probe() sends a HEAD request and checks Content-Length and Accept-Ranges. it returns null
+ * when the file can't (or shouldn't) be split, and the caller falls back to a single stream.</li>
+ * <li>download() splits the parts of the file the journal doesn't have yet into segments. the
+ * calling thread and up to segmentsPerFile - 1 threads from the segment executor work through
+ * them. each segment is written straight to its offset in the target file with positional
+ * writes, so no segment waits for another.</li>
+ * </ul>
+ * </p>
+ */
+class SegmentedDownload {
+    /**
+     * this executor runs all segment workers but the first one, unless Config.executor is set.
+     * the number of threads is bounded by the scheduler's maxConcurrentDownloads times
+     * segmentsPerFile.
+     */
+    private static final ExecutorService segmentExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HttpFileDownloader segment #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final OkHttpClient client;
+    private final DownloadRequest downloadRequest;
+    private final DownloadJournal journal;
+    private final long contentLength;
+    private final int segments;
+    private final long minSegmentSize;
+
+    /**
+     * this is true when the probe was conditional and the server answered 304. there's nothing
+     * to download, the cached copy is current.
+     */
+    final boolean notModified;
+
+    /**
+     * this is set when a segment fails so the other segments stop early
+     */
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    /**
+     * this is the error of the first segment that failed, the one that gets reported
+     */
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+    private SegmentedDownload(OkHttpClient client, DownloadRequest downloadRequest, DownloadJournal journal,
+                              long contentLength, int segments, long minSegmentSize, boolean notModified) {
+        this.notModified = notModified;
+        this.client = client;
+        this.downloadRequest = downloadRequest;
+        this.journal = journal;
+        this.contentLength = contentLength;
+        this.segments = segments;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * asks the server for the size of the file and whether it accepts range requests. if the
+     * file changed since the journal was written, the journal is reset. if there is a cached
+     * copy, the probe is conditional.
+     *
+     * @return a SegmentedDownload for the file, or null if it should be downloaded as a single stream.
+     */
+    static SegmentedDownload probe(OkHttpClient client, DownloadRequest downloadRequest, Config config,
+                                   DownloadJournal journal, DownloadCache.Entry cached) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(downloadRequest.URL)
+                .head()
+                .header("Accept-Encoding", "identity");
+        if (cached != null)
+            cached.addConditionalHeaders(builder);
+
+        Response response = client.newCall(builder.build()).execute();
+        response.body().close();
+
+        if (response.code() == 304 && cached != null)
+            return new SegmentedDownload(client, downloadRequest, journal, cached.length, 0, 0, true);
+
+        if (!response.isSuccessful() || !"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+            log("probe - no range support: " + downloadRequest.URL);
+            return null;
+        }
+
+        long contentLength = parseLong(response.header("Content-Length"));
+        if (contentLength < 2 * config.minSegmentSize)
+            return null;
+
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (!journal.matches(etag, lastModified, contentLength))
+            journal.reset(etag, lastModified, contentLength);
+
+        int segments = (int) Math.min(config.segmentsPerFile, contentLength / config.minSegmentSize);
+        ConcurrencyController controller = getConcurrencyController();
+        if (controller != null)
+            segments = Math.max(1, Math.min(segments, controller.segmentsPerDownload()));
+
+        log("probe - " + downloadRequest.URL + ", length: " + contentLength + ", segments: " + segments);
+        return new SegmentedDownload(client, downloadRequest, journal, contentLength, segments, config.minSegmentSize, false);
+    }
+
+    /**
+     * downloads all missing segments and waits for them to finish.
+     *
+     * @param listener    - this listener gets the combined progress of all segments
+     * @param rateLimiter - the rate limit of the file, shared by all segments. can be null
+     * @param digest      - if not null, each segment is hashed as it's saved, and the crc32 of the
+     *                    whole file is combined from them at the end
+     */
+    void download(final ProgressListener listener, final RateLimiter rateLimiter, Crc32Digest digest) throws IOException {
+        boolean completed = false;
+        // the ranges of the journal are only as good as the file they're in. setLength() would
+        // fill a missing file with zeros, and the ranges would be skipped
+        File part = partialFile(downloadRequest);
+        journal.checkPartialFile(part);
+        RandomAccessFile file = openFile(part);
+        try {
+            file.setLength(contentLength);
+            preallocate(file, 0, contentLength);
+            final FileChannel channel = file.getChannel();
+            final AtomicLong totalBytesRead = new AtomicLong(journal.completedBytes());
+            final ConcurrentLinkedQueue<long[]> pieces = split(journal.missingRanges(contentLength), segments, minSegmentSize);
+
+            // {start, end, crc32} of every segment downloaded, when hashing
+            final ConcurrentLinkedQueue<long[]> hashedPieces = digest == null ? null : new ConcurrentLinkedQueue<long[]>();
+
+            // every worker takes segments from the queue until it's empty. the workers add to
+            // the metrics of the download, if there are any
+            final DownloadMetrics metrics = DownloadMetrics.current();
+            Callable<Void> worker = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    MetricsScope previous = MetricsScope.enter(metrics);
+                    try {
+                        long[] piece;
+                        while (!failed.get() && (piece = pieces.poll()) != null) {
+                            Crc32Digest segmentDigest = hashedPieces == null ? null : new Crc32Digest();
+                            downloadSegment(channel, piece[0], piece[1] - 1, totalBytesRead, listener, rateLimiter, segmentDigest);
+                            if (segmentDigest != null)
+                                hashedPieces.add(new long[]{piece[0], piece[1], segmentDigest.value()});
+                        }
+                        return null;
+                    } finally {
+                        MetricsScope.restore(previous);
+                    }
+                }
+            };
+
+            Executor executor = getConfig().executor == null ? segmentExecutor : getConfig().executor;
+            List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>();
+            int workers = Math.min(segments, pieces.size());
+            for (int i = 1; i < workers; i++) {
+                FutureTask<Void> future = new FutureTask<Void>(worker);
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    // run below, on this thread
+                }
+                futures.add(future);
+            }
+
+            try {
+                worker.call();
+            } catch (Exception e) {
+                fail(e);
+            }
+
+            for (FutureTask<Void> future : futures) {
+                try {
+                    // a worker the executor hasn't started yet runs here: a bounded executor
+                    // that's busy with the downloads waiting for their segments would never
+                    // start it. run() does nothing if the executor already started it
+                    future.run();
+                    future.get();
+                } catch (ExecutionException e) {
+                    fail(e.getCause());
+                } catch (InterruptedException e) {
+                    fail(new IOException("segmented download interrupted"));
+                }
+            }
+
+            if (failure.get() != null)
+                throw failure.get();
+            if (digest != null)
+                digest.setValue(combineCrc32(channel, new ArrayList<long[]>(hashedPieces)));
+            completed = true;
+        } finally {
+            file.close();
+            if (completed)
+                journal.delete();
+            else
+                journal.saveQuietly();
+        }
+    }
+
+    /**
+     * @param hashedPieces - {start, end, crc32} of the segments downloaded by this attempt
+     * @return the crc32 of the whole file. parts downloaded by an earlier attempt are read back
+     * from the file.
+     */
+    private long combineCrc32(FileChannel channel, List<long[]> hashedPieces) throws IOException {
+        Collections.sort(hashedPieces, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        long crc = 0;
+        long position = 0;
+        for (long[] piece : hashedPieces) {
+            if (piece[0] > position)
+                crc = Crc32Digest.combine(crc, readCrc32(channel, position, piece[0]), piece[0] - position);
+            crc = Crc32Digest.combine(crc, piece[2], piece[1] - piece[0]);
+            position = piece[1];
+        }
+        if (position < contentLength)
+            crc = Crc32Digest.combine(crc, readCrc32(channel, position, contentLength), contentLength - position);
+        return crc;
+    }
+
+    private static long readCrc32(FileChannel channel, long start, long end) throws IOException {
+        Crc32Digest digest = new Crc32Digest();
+        digestFile(channel, start, end, digest);
+        return digest.value();
+    }
+
+    /**
+     * stops the other segments and remembers the error, unless another segment failed first.
+     */
+    private void fail(Throwable e) {
+        failed.set(true);
+        failure.compareAndSet(null, (e instanceof IOException) ? (IOException) e : new IOException(e));
+    }
+
+    /**
+     * cuts the missing ranges into segments of about the same size, but no smaller than minSegmentSize.
+     */
+    static ConcurrentLinkedQueue<long[]> split(List<long[]> missing, int segments, long minSegmentSize) {
+        long missingBytes = 0;
+        for (long[] range : missing)
+            missingBytes += range[1] - range[0];
+        long segmentSize = Math.max(minSegmentSize, (missingBytes + segments - 1) / segments);
+
+        ConcurrentLinkedQueue<long[]> pieces = new ConcurrentLinkedQueue<long[]>();
+        for (long[] range : missing) {
+            for (long start = range[0]; start < range[1]; start += segmentSize) {
+                // don't leave a tiny segment at the end of a range
+                long end = (range[1] - start < segmentSize + minSegmentSize) ? range[1] : start + segmentSize;
+                pieces.add(new long[]{start, end});
+                if (end == range[1])
+                    break;
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * downloads bytes start..end (inclusive) and writes them at the same offset in the file.
+     */
+    private void downloadSegment(FileChannel channel, long start, long end, final AtomicLong totalBytesRead,
+                                 final ProgressListener listener, RateLimiter rateLimiter,
+                                 StreamDigest digest) throws IOException {
+        // ProgressResponseBody reports the bytes read by this segment, turn that into the total for the file
+        ProgressListener segmentListener = new ProgressListener() {
+            long lastBytesRead = 0;
+
+            @Override
+            public void update(long bytesRead, long segmentLength, boolean done) {
+                long total = totalBytesRead.addAndGet(bytesRead - lastBytesRead);
+                lastBytesRead = bytesRead;
+                listener.update(total, contentLength, total == contentLength);
+            }
+        };
+
+        Request.Builder builder = new Request.Builder()
+                .url(downloadRequest.URL)
+                .header("Range", "bytes=" + start + "-" + end)
+                .header("Accept-Encoding", "identity")
+                .tag(new Transfer(listener == null ? null : segmentListener, rateLimiter));
+        // If-Range makes the server send the whole file instead of a range if the file changed
+        // between segments
+        String validator = journal.validator();
+        if (validator != null)
+            builder.header("If-Range", validator);
+
+        Response response = client.newCall(builder.build()).execute();
+        try {
+            if (response.code() != 206)
+                throw new IOException("range " + start + "-" + end + " not returned, error code: " + response.code());
+
+            long position = writeBody(response.body().source(), channel, start, journal, failed, digest);
+            if (position != end + 1)
+                throw new IOException("range " + start + "-" + end + " ended early at " + position);
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            response.body().close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.BatchDownload;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchDownloadTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void readsTheManifest() throws Exception {
+        File directory = folder.newFolder("files");
+        List<DownloadRequest> requests = BatchDownload.readManifest(manifest(
+                "# a comment",
+                "http://example.com/a/first.bin",
+                "",
+                "http://example.com/second\tsub/second.bin\tabc123",
+                "http://example.com/third\tthird.bin\tCRC32:1c291ca3"), directory);
+
+        assertEquals(3, requests.size());
+        assertEquals(new File(directory, "first.bin").getPath(), requests.get(0).storageLocation);
+        assertNull(requests.get(0).expectedDigest);
+        assertEquals(new File(directory, "sub/second.bin").getPath(), requests.get(1).storageLocation);
+        assertEquals("SHA-256", requests.get(1).digestAlgorithm);
+        assertEquals("abc123", requests.get(1).expectedDigest);
+        assertEquals("CRC32", requests.get(2).digestAlgorithm);
+        assertEquals("1c291ca3", requests.get(2).expectedDigest);
+    }
+
+    @Test
+    public void rejectsBadManifests() throws Exception {
+        File directory = folder.newFolder("files");
+        String[][] cases = {
+                // {error, lines...}
+                {"manifest line 1: path outside of the directory: ../escaped", "http://example.com/a\t../escaped"},
+                {"manifest line 1: no file name in http://example.com/", "http://example.com/"},
+                {"manifest line 3: same path as line 1: same.bin", "http://example.com/a\tsame.bin", "http://example.com/b\tother.bin",
+                        "http://example.com/c\tsame.bin"},
+                // the same file, spelled differently
+                {"manifest line 2: same path as line 1: sub/../same.bin", "http://example.com/same.bin", "http://example.com/b\tsub/../same.bin"},
+                {"manifest line 2: same path as line 1: ./same.bin", "http://example.com/a\tsame.bin", "http://example.com/b\t./same.bin"},
+        };
+        for (String[] testCase : cases) {
+            try {
+                BatchDownload.readManifest(manifest(Arrays.copyOfRange(testCase, 1, testCase.length)), directory);
+                fail(testCase[0]);
+            } catch (IOException e) {
+                assertEquals(testCase[0], e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void retriesAFailedFile() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("second time"));
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .retryPolicy(new RetryPolicy(2, 10, 10, 10))
+                .build());
+
+        File target = new File(folder.getRoot(), "file");
+        BatchDownload batch = BatchDownload.start(Arrays.asList(new DownloadRequest(server.getUrl("/file").toString(), target.getPath())),
+                null, null);
+        assertTrue(batch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, batch.filesFailed());
+        assertEquals(2, server.getRequestCount());
+        assertArrayEquals("second time".getBytes("UTF-8"), SegmentedDownloadTest.readFile(target));
+    }
+
+    @Test
+    public void aCanceledFileDoesntResetTheCircuitBreaker() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[64 * 1024])).throttleBody(1024, 1, TimeUnit.SECONDS));
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .circuitBreaker(2, 1, TimeUnit.MINUTES)
+                .build());
+        String url = server.getUrl("/file").toString();
+        CircuitBreaker circuitBreaker = DownloadEngine.getCircuitBreaker(DownloadEngine.hostOf(url));
+        circuitBreaker.onFailure();
+
+        BatchDownload batch = BatchDownload.start(Arrays.asList(new DownloadRequest(url, new File(folder.getRoot(), "file").getPath())),
+                null, null);
+        server.takeRequest();
+        batch.cancel();
+        assertTrue(batch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, batch.filesFailed());
+
+        // the failure before the cancel still counts
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    private File manifest(String... lines) throws IOException {
+        File manifest = File.createTempFile("manifest", ".txt", folder.getRoot());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+        try {
+            for (String line : lines)
+                writer.write(line + "\n");
+        } finally {
+            writer.close();
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,117 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConcurrencyController;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyControllerTest {
+    private static final int MAX_LIMIT = 64;
+    /**
+     * what a single download gets by itself, in bytes per second
+     */
+    private static final double PER_DOWNLOAD = 100 * 1024;
+
+    /**
+     * a made up network: every download gets PER_DOWNLOAD until they fill the bandwidth, after that
+     * they share it and the requests queue up, the time to first byte grows with the overload.
+     */
+    private static class Network {
+        double bandwidth;
+        long baseLatency;
+
+        Network(double bandwidth, long baseLatencyMillis) {
+            this.bandwidth = bandwidth;
+            this.baseLatency = TimeUnit.MILLISECONDS.toNanos(baseLatencyMillis);
+        }
+
+        double throughput(int downloads) {
+            return Math.min(downloads * PER_DOWNLOAD, bandwidth);
+        }
+
+        long latency(int downloads) {
+            return (long) (baseLatency * Math.max(1, downloads * PER_DOWNLOAD / bandwidth));
+        }
+
+        /**
+         * @return the fewest downloads that fill the bandwidth
+         */
+        int fill() {
+            return (int) Math.ceil(bandwidth / PER_DOWNLOAD);
+        }
+    }
+
+    @Test
+    public void convergesUpToTheBandwidth() {
+        ConcurrencyController controller = new ConcurrencyController(1000, MAX_LIMIT);
+        Network network = new Network(10 * PER_DOWNLOAD, 50);
+        assertEquals(2, controller.limit());
+
+        run(controller, network, 30);
+        assertSettled(controller, network, 200);
+    }
+
+    @Test
+    public void recoversAfterTheNetworkGotSlower() {
+        ConcurrencyController controller = new ConcurrencyController(1000, MAX_LIMIT);
+        Network network = new Network(10 * PER_DOWNLOAD, 50);
+        run(controller, network, 50);
+
+        // from wifi to mobile: half the bandwidth, three times the latency
+        network.bandwidth = 5 * PER_DOWNLOAD;
+        network.baseLatency *= 3;
+        run(controller, network, 40);
+        assertSettled(controller, network, 200);
+
+        // and back
+        network.bandwidth = 10 * PER_DOWNLOAD;
+        network.baseLatency /= 3;
+        run(controller, network, 40);
+        assertSettled(controller, network, 200);
+    }
+
+    @Test
+    public void idleSamplesDontMoveTheLimit() {
+        ConcurrencyController controller = new ConcurrencyController(1000, MAX_LIMIT);
+        for (int i = 0; i < 10; i++)
+            assertEquals(2, controller.update(0, -1, false));
+    }
+
+    @Test
+    public void staysUnderTheMaximum() {
+        ConcurrencyController controller = new ConcurrencyController(1000, 8);
+        Network network = new Network(100 * PER_DOWNLOAD, 50);
+        run(controller, network, 30);
+        assertEquals(8, controller.limit());
+    }
+
+    private static void run(ConcurrencyController controller, Network network, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int downloads = controller.limit();
+            controller.update(network.throughput(downloads), network.latency(downloads), true);
+        }
+    }
+
+    /**
+     * checks that the limit stays where the bandwidth is used and the latency doesn't run away. the
+     * limit is cut when the latency passes twice the lowest, so it's never over twice fill() plus
+     * one. it's at least 3/4 of fill() but for the samples it's cut to a quarter to measure the
+     * lowest again, one in LATENCY_WINDOW or so.
+     */
+    private static void assertSettled(ConcurrencyController controller, Network network, int samples) {
+        int low = 0;
+        for (int i = 0; i < samples; i++) {
+            int downloads = controller.limit();
+            String message = "sample " + i + ", limit " + downloads + ", fill " + network.fill();
+            assertTrue(message, downloads <= 2 * network.fill() + 1);
+            if (downloads < network.fill() * 3 / 4)
+                low++;
+            controller.update(network.throughput(downloads), network.latency(downloads), true);
+        }
+        assertTrue(low + " of " + samples + " samples under the bandwidth", low <= samples / 10);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.Crc32Digest;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32DigestTest {
+    /**
+     * every case is {the length of the first part, the length of the second part}.
+     */
+    private static final int[][] CASES = {
+            {0, 0},
+            {0, 1},
+            {1, 0},
+            {1, 1},
+            {3, 5},
+            {7, 8},
+            {8, 7},
+            {1000, 1},
+            {1, 1000},
+            {4096, 4096},
+            {65535, 65537},
+            {100003, 999983},
+    };
+
+    @Test
+    public void combineMatchesTheJoinedBytes() {
+        Random random = new Random(1);
+        for (int[] testCase : CASES) {
+            byte[] bytes = new byte[testCase[0] + testCase[1]];
+            random.nextBytes(bytes);
+
+            long crc1 = crc32(bytes, 0, testCase[0]);
+            long crc2 = crc32(bytes, testCase[0], testCase[1]);
+            assertEquals(testCase[0] + " + " + testCase[1],
+                    crc32(bytes, 0, bytes.length), Crc32Digest.combine(crc1, crc2, testCase[1]));
+        }
+    }
+
+    @Test
+    public void combineOfManySegmentsInOrder() {
+        Random random = new Random(2);
+        byte[] bytes = new byte[1 << 20];
+        random.nextBytes(bytes);
+
+        for (int segments : new int[]{2, 3, 7, 16}) {
+            int segmentSize = bytes.length / segments;
+            long combined = crc32(bytes, 0, 0);
+            for (int start = 0; start < bytes.length; start += segmentSize) {
+                int length = Math.min(segmentSize, bytes.length - start);
+                combined = Crc32Digest.combine(combined, crc32(bytes, start, length), length);
+            }
+            assertEquals(segments + " segments", crc32(bytes, 0, bytes.length), combined);
+        }
+    }
+
+    @Test
+    public void hexIsPaddedToEightDigits() {
+        Crc32Digest digest = new Crc32Digest();
+        digest.setValue(0xabcL);
+        assertEquals("00000abc", digest.hex());
+        digest.update(new byte[0], 0, 0);
+        digest.setValue(-1);
+        // crc32 of nothing
+        assertEquals("00000000", digest.hex());
+    }
+
+    private static long crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return crc32.getValue();
+    }
+}
@@ -0,0 +1,183 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.ResponseBundle;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadCacheTest {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final byte[] BODY = "the file in the cache".getBytes(Charset.forName("UTF-8"));
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private File cacheDirectory;
+    private DownloadRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (ETAG.equals(request.getHeader("If-None-Match")))
+                    return new MockResponse().setResponseCode(304);
+                return new MockResponse()
+                        .setHeader("ETag", ETAG)
+                        .setHeader("Last-Modified", LAST_MODIFIED)
+                        .setBody(new Buffer().write(BODY));
+            }
+        });
+        server.start();
+        cacheDirectory = folder.newFolder("cache");
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .segmentsPerFile(1)
+                .cacheDirectory(cacheDirectory)
+                .build());
+        request = new DownloadRequest(server.getUrl("/file").toString(), new File(folder.getRoot(), "file").getPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void notModifiedRestoresTheCachedCopy() throws Exception {
+        download();
+        RecordedRequest first = server.takeRequest();
+        assertNull(first.getHeader("If-None-Match"));
+        assertNull(first.getHeader("If-Modified-Since"));
+
+        // the file is gone, the cached copy takes its place
+        assertTrue(new File(request.storageLocation).delete());
+        download();
+        RecordedRequest second = server.takeRequest();
+        assertEquals(ETAG, second.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, second.getHeader("If-Modified-Since"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void theCachedCopyIsALink() throws Exception {
+        DownloadEngine.setPlatform(new Platform() {
+            @Override
+            protected boolean link(File from, File to) {
+                try {
+                    Files.createLink(to.toPath(), from.toPath());
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        });
+        try {
+            download();
+        } finally {
+            DownloadEngine.setPlatform(new Platform());
+        }
+        File cached = new File(cacheDirectory, DownloadCache.keyOf(request.URL));
+        assertTrue(Files.isSameFile(cached.toPath(), new File(request.storageLocation).toPath()));
+    }
+
+    @Test
+    public void theCachedCopyIsACopyWhereThePlatformCantLink() throws Exception {
+        download();
+        File cached = new File(cacheDirectory, DownloadCache.keyOf(request.URL));
+        assertFalse(Files.isSameFile(cached.toPath(), new File(request.storageLocation).toPath()));
+        assertArrayEquals(BODY, Files.readAllBytes(cached.toPath()));
+    }
+
+    @Test
+    public void aCachedCopyThatDoesntMatchItsDigestIsDownloadedAgain() throws Exception {
+        request.digestAlgorithm = "SHA-256";
+        request.expectedDigest = DownloadEngine.toHex(MessageDigest.getInstance("SHA-256").digest(BODY));
+        download();
+
+        // damaged in place, with the same length
+        File cached = new File(cacheDirectory, DownloadCache.keyOf(request.URL));
+        write(cached, new byte[BODY.length]);
+        download();
+
+        assertEquals(3, server.getRequestCount());
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+        assertEquals(ETAG, server.takeRequest().getHeader("If-None-Match"));
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws Exception {
+        DownloadCache cache = DownloadCache.open(folder.newFolder("lru"), 100);
+        cache.put("a", ETAG, null, file("a", 40));
+        cache.put("b", ETAG, null, file("b", 40));
+        assertNotNull(cache.get("a"));
+        cache.put("c", ETAG, null, file("c", 40));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        // bigger than the whole cache, or without a validator
+        cache.put("d", ETAG, null, file("d", 101));
+        cache.put("e", null, null, file("e", 10));
+        assertNull(cache.get("d"));
+        assertNull(cache.get("e"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+
+        // the index survives
+        DownloadCache reopened = DownloadCache.open(new File(folder.getRoot(), "lru"), 100);
+        assertNotNull(reopened.get("a"));
+        assertNotNull(reopened.get("c"));
+        assertNull(reopened.get("b"));
+    }
+
+    private void download() throws Exception {
+        ResponseBundle result = DownloadEngine.downloadFile(request, null);
+        if (!result.Status)
+            throw result.Exception;
+        assertArrayEquals(BODY, SegmentedDownloadTest.readFile(new File(request.storageLocation)));
+    }
+
+    private File file(String name, int length) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        write(file, new byte[length]);
+        return file;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+}
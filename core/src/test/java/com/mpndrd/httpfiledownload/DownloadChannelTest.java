@@ -0,0 +1,205 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConsumerException;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadFuture;
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamConsumer;
+import com.mpndrd.httpfiledownload.DownloadEngine.StreamRequest;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadChannelTest {
+    private static final int LENGTH = 100003;
+    private static final int BUFFER_SIZE = 1000;
+
+    private final MockWebServer server = new MockWebServer();
+    private final byte[] body = new byte[LENGTH];
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(body);
+        server.start();
+        url = server.getUrl("/stream").toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void deliversTheBodyInOrder() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        BufferPool pool = new BufferPool(4, BUFFER_SIZE);
+        DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(url, channel), null);
+
+        assertArrayEquals(body, readAll(channel));
+        future.get(10, TimeUnit.SECONDS);
+        channel.close();
+        assertTrue(String.valueOf(pool.allocated()), pool.allocated() <= 4);
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    public void aSlowReaderHoldsBackTheDownload() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        BufferPool pool = new BufferPool(2, BUFFER_SIZE);
+        DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(url, channel), null);
+
+        // the download fills both buffers and waits for the reader
+        awaitInUse(pool, 2);
+        Thread.sleep(200);
+        assertFalse(future.isDone());
+        assertEquals(2, pool.allocated());
+
+        assertArrayEquals(body, readAll(channel));
+        future.get(10, TimeUnit.SECONDS);
+        assertEquals(2, pool.allocated());
+    }
+
+    @Test
+    public void closingTheChannelStopsTheDownload() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        BufferPool pool = new BufferPool(2, BUFFER_SIZE);
+        DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(url, channel), null);
+
+        // the download is blocked on the pool when the channel is closed
+        awaitInUse(pool, 2);
+        channel.close();
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ConsumerException);
+        }
+        assertEquals(0, pool.inUse());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void cancelingTheDownloadWakesTheReaderAndTheDownload() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        BufferPool pool = new BufferPool(2, BUFFER_SIZE);
+        DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(url, channel), null);
+
+        // the download is blocked on the pool when it's canceled
+        awaitInUse(pool, 2);
+        future.cancel(false);
+        awaitInUse(pool, 0);
+        try {
+            channel.read(ByteBuffer.allocate(BUFFER_SIZE));
+            fail();
+        } catch (IOException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof CancellationException);
+        }
+    }
+
+    @Test
+    public void cancelingTheDownloadWakesABlockedReader() throws Exception {
+        // the first byte, then one a second
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)).throttleBody(1, 1, TimeUnit.SECONDS));
+        BufferPool pool = new BufferPool(2, BUFFER_SIZE);
+        final DownloadChannel channel = new DownloadChannel(pool);
+        DownloadFuture future = DownloadEngine.submit(new StreamRequest(url, channel), null);
+
+        assertEquals(1, channel.read(ByteBuffer.allocate(BUFFER_SIZE)));
+        final AtomicReference<Exception> readError = new AtomicReference<Exception>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.read(ByteBuffer.allocate(BUFFER_SIZE));
+                } catch (IOException e) {
+                    readError.set(e);
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(200);
+        future.cancel(false);
+        reader.join(10000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(String.valueOf(readError.get()), readError.get().getCause() instanceof CancellationException);
+        channel.close();
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    public void aFailingConsumerIsntRetriedOrAHostFailure() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .circuitBreaker(1, 1, TimeUnit.MINUTES)
+                .build());
+        StreamConsumer consumer = new StreamConsumer() {
+            @Override
+            public void onStart(long offset, long contentLength) {
+            }
+
+            @Override
+            public void onData(ByteBuffer data) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void onFinished(Exception error) {
+            }
+        };
+
+        try {
+            DownloadEngine.submit(new StreamRequest(url, consumer), null).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ConsumerException);
+            assertEquals("disk full", e.getCause().getCause().getMessage());
+        }
+        assertEquals(1, server.getRequestCount());
+        assertTrue(DownloadEngine.getCircuitBreaker(DownloadEngine.hostOf(url)).allowRequest());
+    }
+
+    private static byte[] readAll(DownloadChannel channel) throws IOException {
+        InputStream input = Channels.newInputStream(channel);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+    private static void awaitInUse(BufferPool pool, int buffers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.inUse() != buffers) {
+            assertTrue("in use: " + pool.inUse(), System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
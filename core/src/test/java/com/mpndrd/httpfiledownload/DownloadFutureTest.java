@@ -0,0 +1,76 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadFuture;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadFutureTest {
+    private static final int ROUNDS = 2000;
+
+    @Test
+    public void cancelRacingCompletion() throws Exception {
+        DownloadRequest request = new DownloadRequest("http://example.com/file", "file");
+        for (int i = 0; i < ROUNDS; i++) {
+            final DownloadFuture future = new DownloadFuture(request, null);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicBoolean completed = new AtomicBoolean();
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    completed.set(future.complete(null));
+                }
+            });
+            worker.start();
+            start.countDown();
+            boolean canceled = future.cancel(false);
+            worker.join();
+
+            // exactly one of them won, and the future says which
+            assertTrue(canceled != completed.get());
+            assertTrue(future.isDone());
+            assertEquals(canceled, future.isCancelled());
+            if (canceled) {
+                try {
+                    future.get();
+                    fail("round " + i + ": canceled but get() returned");
+                } catch (CancellationException e) {
+                    // expected
+                }
+            } else {
+                assertSame(request, future.get());
+            }
+        }
+    }
+
+    @Test
+    public void cancelAfterCompletionDoesNothing() throws Exception {
+        DownloadRequest request = new DownloadRequest("http://example.com/file", "file");
+        DownloadFuture future = new DownloadFuture(request, null);
+        assertTrue(future.complete(new Exception("failed")));
+        assertFalse(future.cancel(false));
+        assertFalse(future.isCancelled());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+    }
+}
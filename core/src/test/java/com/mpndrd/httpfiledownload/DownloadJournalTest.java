@@ -0,0 +1,132 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadJournalTest {
+    private static final long LENGTH = 100;
+
+    /**
+     * every case is {ranges added, in order}, {the missing ranges of 0..LENGTH afterwards}.
+     */
+    private static final long[][][][] CASES = {
+            // nothing downloaded
+            {{}, {{0, 100}}},
+            // empty and backwards ranges are ignored
+            {{{10, 10}, {30, 20}}, {{0, 100}}},
+            {{{0, 100}}, {}},
+            {{{0, 10}}, {{10, 100}}},
+            {{{90, 100}}, {{0, 90}}},
+            // disjoint, added out of order
+            {{{50, 60}, {10, 20}}, {{0, 10}, {20, 50}, {60, 100}}},
+            // adjacent ranges merge, from either side
+            {{{10, 20}, {20, 30}}, {{0, 10}, {30, 100}}},
+            {{{20, 30}, {10, 20}}, {{0, 10}, {30, 100}}},
+            {{{0, 10}, {20, 30}, {10, 20}}, {{30, 100}}},
+            // overlapping ranges merge
+            {{{10, 30}, {20, 40}}, {{0, 10}, {40, 100}}},
+            {{{20, 40}, {10, 30}}, {{0, 10}, {40, 100}}},
+            // one range inside another
+            {{{10, 50}, {20, 30}}, {{0, 10}, {50, 100}}},
+            {{{20, 30}, {10, 50}}, {{0, 10}, {50, 100}}},
+            // a range that spans several
+            {{{10, 20}, {30, 40}, {50, 60}, {15, 55}}, {{0, 10}, {60, 100}}},
+            {{{10, 20}, {30, 40}, {50, 60}, {0, 100}}, {}},
+            // a range past the end of the file
+            {{{90, 120}}, {{0, 90}}},
+            {{{120, 130}}, {{0, 100}}},
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void missingRanges() throws Exception {
+        for (long[][][] testCase : CASES) {
+            DownloadJournal journal = newJournal();
+            for (long[] range : testCase[0])
+                journal.addRange(range[0], range[1]);
+            assertRanges(describe(testCase[0]), testCase[1], journal.missingRanges(LENGTH));
+        }
+    }
+
+    @Test
+    public void completedBytesCountsOverlapsOnce() throws Exception {
+        DownloadJournal journal = newJournal();
+        journal.addRange(0, 30);
+        journal.addRange(20, 50);
+        journal.addRange(50, 60);
+        journal.addRange(10, 15);
+        assertEquals(60, journal.completedBytes());
+    }
+
+    @Test
+    public void rangesSurviveSaveAndOpen() throws Exception {
+        for (long[][][] testCase : CASES) {
+            DownloadJournal journal = newJournal();
+            journal.reset("\"v1\"", null, LENGTH);
+            for (long[] range : testCase[0])
+                journal.addRange(range[0], range[1]);
+            journal.save();
+
+            DownloadJournal reopened = DownloadJournal.open(request());
+            assertEquals(true, reopened.matches("\"v1\"", null, LENGTH));
+            assertRanges(describe(testCase[0]), testCase[1], reopened.missingRanges(LENGTH));
+            reopened.delete();
+        }
+    }
+
+    @Test
+    public void resumeOffsetOnlyCountsTheFirstRange() throws Exception {
+        File target = folder.newFile("target.part");
+        RandomAccessFile part = new RandomAccessFile(target, "rw");
+        try {
+            part.setLength(LENGTH);
+        } finally {
+            part.close();
+        }
+
+        DownloadJournal journal = newJournal();
+        journal.reset("\"v1\"", null, LENGTH);
+        journal.addRange(10, 40);
+        assertEquals(0, journal.resumeOffset(target));
+        journal.addRange(0, 10);
+        journal.addRange(50, 60);
+        assertEquals(40, journal.resumeOffset(target));
+        // without a validator the bytes can't be trusted
+        journal.reset(null, null, LENGTH);
+        journal.addRange(0, 10);
+        assertEquals(0, journal.resumeOffset(target));
+    }
+
+    private DownloadRequest request() {
+        return new DownloadRequest("http://example.com/file", new File(folder.getRoot(), "file").getPath());
+    }
+
+    private DownloadJournal newJournal() {
+        return DownloadJournal.open(request());
+    }
+
+    private static void assertRanges(String message, long[][] expected, List<long[]> actual) {
+        assertEquals(message, describe(expected), describe(actual.toArray(new long[actual.size()][])));
+    }
+
+    private static String describe(long[][] ranges) {
+        StringBuilder builder = new StringBuilder("[");
+        for (long[] range : ranges) {
+            if (builder.length() > 1)
+                builder.append(", ");
+            builder.append(range[0]).append('-').append(range[1]);
+        }
+        return builder.append(']').toString();
+    }
+}
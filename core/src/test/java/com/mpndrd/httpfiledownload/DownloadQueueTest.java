@@ -0,0 +1,227 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadCallback;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadQueue;
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest {
+    /**
+     * values that have to come back from the log as they went in.
+     */
+    private static final String[] VALUES = {
+            null,
+            "",
+            "=",
+            "==",
+            "a=b",
+            "\t",
+            "a\tb\tc",
+            "\n",
+            "line\nbreak\r\n",
+            "\\",
+            "\\t",
+            "ends with \\",
+            "http://example.com/a b?c=d&e=\tf",
+            "\u00fcn\u00efc\u00f6d\u00e9",
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private DownloadQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getPath().equals("/ok"))
+                    return new MockResponse().setBody("ok");
+                if (request.getPath().equals("/missing"))
+                    return new MockResponse().setResponseCode(404);
+                if (request.getPath().equals("/slow-down"))
+                    return new MockResponse().setResponseCode(429);
+                return new MockResponse().setResponseCode(503);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.close();
+        server.shutdown();
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void escapeRoundTrip() {
+        for (String value : VALUES) {
+            String field = DownloadQueue.escape(value);
+            assertFalse(field, field.contains("\t") || field.contains("\n") || field.contains("\r"));
+            assertEquals(field, value, DownloadQueue.unescape(field));
+        }
+        // null and the empty string stay apart
+        assertEquals("", DownloadQueue.escape(null));
+        assertEquals("=", DownloadQueue.escape(""));
+        assertNull(DownloadQueue.unescape(""));
+    }
+
+    @Test
+    public void recordRoundTrip() {
+        for (int i = 0; i < VALUES.length; i++) {
+            DownloadRequest request = new DownloadRequest("http://example.com/" + i, "file " + VALUES[i], VALUES[i], VALUES[i]);
+            request.priority = i - 5;
+            request.maxBytesPerSecond = i * 1000;
+            request.unpack = VALUES[i];
+
+            String record = DownloadQueue.encode(i, request);
+            assertFalse(record, record.contains("\n") || record.contains("\r"));
+            DownloadRequest decoded = DownloadQueue.decode(record.split("\t", -1));
+            assertEquals(request.URL, decoded.URL);
+            assertEquals(request.storageLocation, decoded.storageLocation);
+            assertEquals(request.digestAlgorithm, decoded.digestAlgorithm);
+            assertEquals(request.expectedDigest, decoded.expectedDigest);
+            assertEquals(request.priority, decoded.priority);
+            assertEquals(request.maxBytesPerSecond, decoded.maxBytesPerSecond);
+            assertEquals(request.unpack, decoded.unpack);
+        }
+    }
+
+    @Test
+    public void replayIgnoresACutOffLastLine() throws Exception {
+        File log = folder.newFile("queue");
+        String added = "A\t1\t=http://127.0.0.1:1/a\t=" + new File(folder.getRoot(), "a").getPath() + "\t\t\t0\t0\t";
+        String zip = "A\t2\t=http://127.0.0.1:1/b\t=" + new File(folder.getRoot(), "b").getPath() + "\t\t\t0\t0\t=zip";
+        String[][] cases = {
+                // {log, the requests pending after it's replayed}
+                {added + "\n", "1"},
+                {added + "\nD\t1\tok\n", "0"},
+                // the done record of 1 was cut off, 1 is still pending
+                {added + "\nD\t1\to", "1"},
+                {added + "\nD\t1", "1"},
+                {added + "\nD\t", "1"},
+                // 2 was cut off in its last field, it would come back with unpack "zi"
+                {added + "\n" + zip.substring(0, zip.length() - 1), "1"},
+                {added + "\n" + zip.substring(0, 10), "1"},
+                {added + "\n" + zip + "\n", "2"},
+                // a broken record in the middle is skipped
+                {added + "\nX\tgarbage\n" + zip + "\n", "2"},
+        };
+        offline();
+        for (String[] testCase : cases) {
+            write(log, testCase[0]);
+            queue = DownloadQueue.open(log, 1, null);
+            assertEquals(testCase[0], Integer.parseInt(testCase[1]), queue.pending());
+            queue.close();
+            queue = null;
+        }
+    }
+
+    @Test
+    public void onlySuccessAndPermanentFailuresAreDone() throws Exception {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .retryPolicy(new RetryPolicy(1, 0, 0, 0))
+                .circuitBreaker(0, 0, TimeUnit.MILLISECONDS)
+                .build());
+
+        File log = folder.newFile("queue");
+        log.delete();
+        final CountDownLatch attempts = new CountDownLatch(4);
+        DownloadCallback callback = new DownloadCallback() {
+            @Override
+            public void onFinished(DownloadRequest downloadRequest, Exception error) {
+                attempts.countDown();
+            }
+        };
+        queue = DownloadQueue.open(log, 4, callback);
+        queue.enqueue(request("/ok"), request("/missing"), request("/slow-down"), request("/unavailable"));
+        assertTrue(attempts.await(10, TimeUnit.SECONDS));
+        assertEquals(2, queue.pending());
+        queue.close();
+
+        // the transient failures are still in the log
+        queue = DownloadQueue.open(log, 4, null);
+        assertEquals(2, queue.pending());
+    }
+
+    @Test
+    public void aMalformedUrlFailsForGood() throws Exception {
+        File log = folder.newFile("queue");
+        log.delete();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch attempts = new CountDownLatch(2);
+        queue = DownloadQueue.open(log, 1, new DownloadCallback() {
+            @Override
+            public void onFinished(DownloadRequest downloadRequest, Exception error) {
+                errors.add(error);
+                attempts.countDown();
+            }
+        });
+        // the worker goes on to the next request
+        queue.enqueue(new DownloadRequest("not a url", new File(folder.getRoot(), "malformed").getPath()), request("/ok"));
+        assertTrue(attempts.await(10, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(errors.get(0)), errors.get(0) instanceof RuntimeException);
+        assertNull(errors.get(1));
+        assertTrue(queue.awaitIdle(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void isDone() {
+        assertTrue(DownloadQueue.isDone(null));
+        assertTrue(DownloadQueue.isDone(new DownloadEngine.DigestMismatchException("a", "b")));
+        assertFalse(DownloadQueue.isDone(new IOException("connection refused")));
+        assertFalse(DownloadQueue.isDone(new IOException("circuit open for host: example.com")));
+        assertTrue(DownloadQueue.isDone(new IllegalArgumentException("unexpected url: not a url")));
+    }
+
+    private DownloadRequest request(String path) {
+        return new DownloadRequest(server.getUrl(path).toString(), new File(folder.getRoot(), path.substring(1)).getPath());
+    }
+
+    /**
+     * the queued downloads fail right away and wait for their backoff, so pending() doesn't move.
+     */
+    private static void offline() {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .retryPolicy(new RetryPolicy(1, 0, 0, 0))
+                .build());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
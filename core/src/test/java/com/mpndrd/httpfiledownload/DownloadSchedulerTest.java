@@ -0,0 +1,152 @@
+package com.mpndrd.httpfiledownload;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest {
+    private final DownloadScheduler scheduler = new DownloadScheduler(1, 1, 100);
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void higherPrioritiesStartFirst() throws Exception {
+        block();
+        scheduler.submit("host", 0, record("low"));
+        scheduler.submit("host", 5, record("high"));
+        scheduler.submit("host", 0, record("low2"));
+        assertStarted("high", "low", "low2");
+    }
+
+    @Test
+    public void raisePriorityMovesAWaitingDownload() throws Exception {
+        block();
+        Runnable first = record("first");
+        Runnable second = record("second");
+        scheduler.submit("host", 0, first);
+        scheduler.submit("host", 0, second);
+        scheduler.submit("host", 5, record("high"));
+        scheduler.raisePriority(second, 10);
+        // lower than its own, ignored
+        scheduler.raisePriority(first, -10);
+        assertStarted("second", "high", "first");
+    }
+
+    @Test
+    public void raisePriorityBeforeTheDownloadIsQueued() throws Exception {
+        block();
+        scheduler.submit("host", 5, record("high"));
+        Runnable retry = record("retry");
+        // a download raised while it's running is queued with the new priority when it's retried
+        scheduler.raisePriority(retry, 10);
+        scheduler.schedule("host", 0, retry, 0);
+        assertTrue(waitForQueued(2));
+        assertStarted("retry", "high");
+    }
+
+    @Test
+    public void maxDownloadsPerHostLeavesRoomForOtherHosts() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 2, 100);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit("a", 0, new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    while (true) {
+                        int most = mostRunning.get();
+                        if (now <= most || mostRunning.compareAndSet(most, now))
+                            break;
+                    }
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        final CountDownLatch otherHost = new CountDownLatch(1);
+        scheduler.submit("b", 0, new Runnable() {
+            @Override
+            public void run() {
+                otherHost.countDown();
+            }
+        });
+
+        // the third download of a waits, b doesn't
+        assertTrue(otherHost.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.queued());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (running.get() < 2 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        Thread.sleep(50);
+        assertEquals(2, running.get());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mostRunning.get());
+    }
+
+    /**
+     * takes the only slot until release.
+     */
+    private void block() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        scheduler.submit("host", 0, new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.add(name);
+            }
+        };
+    }
+
+    private boolean waitForQueued(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.queued() < count) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * releases the slot and checks the order the waiting downloads started in.
+     */
+    private void assertStarted(String... expected) throws InterruptedException {
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (started.size() < expected.length && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(Arrays.asList(expected), new ArrayList<String>(started));
+    }
+}
@@ -0,0 +1,105 @@
+package com.mpndrd.httpfiledownload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    /**
+     * every case is {value, its bucket, the start of the bucket}.
+     */
+    private static final long[][] BUCKETS = {
+            {0, 0, 0},
+            {1, 1, 1},
+            {15, 15, 15},
+            // from 16 on every power of two is split into 16 buckets
+            {16, 16, 16},
+            {31, 31, 31},
+            {32, 32, 32},
+            {33, 32, 32},
+            {34, 33, 34},
+            {63, 47, 62},
+            {64, 48, 64},
+            {1000, 111, 992},
+            {1 << 20, 272, 1 << 20},
+            {Long.MAX_VALUE / 2 + 1, 944, Long.MAX_VALUE / 2 + 1},
+            {Long.MAX_VALUE, 959, 31L << 58},
+    };
+
+    @Test
+    public void bucketEdges() {
+        for (long[] testCase : BUCKETS) {
+            int bucket = Histogram.bucket(testCase[0]);
+            assertEquals(String.valueOf(testCase[0]), testCase[1], bucket);
+            assertEquals(String.valueOf(testCase[0]), testCase[2], Histogram.bucketStart(bucket));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int bucket = 1; bucket < 960; bucket++) {
+            long start = Histogram.bucketStart(bucket);
+            assertTrue(bucket + " starts at " + start, start > Histogram.bucketStart(bucket - 1));
+            assertEquals(bucket, Histogram.bucket(start));
+            assertEquals(bucket - 1, Histogram.bucket(start - 1));
+            // a value is off by at most 1/16 of the start of its bucket
+            if (bucket >= 16 && bucket + 1 < 960)
+                assertTrue(String.valueOf(bucket), Histogram.bucketStart(bucket + 1) - start <= start / 16);
+        }
+    }
+
+    @Test
+    public void percentileOfNothingIsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.mean(), 0);
+    }
+
+    @Test
+    public void percentileOfTheExtremes() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        assertEquals(0, histogram.percentile(0));
+        assertEquals(0, histogram.percentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(51));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(100));
+        assertEquals(Long.MAX_VALUE, histogram.max());
+    }
+
+    @Test
+    public void percentileIsTheTopOfItsBucket() {
+        /*
+         * every case is {percentile, the value}, for the values 1 to 1000 recorded once each. a
+         * percentile is rounded up to the top of its bucket, but never above the max.
+         */
+        double[][] cases = {
+                {0, 1},
+                {1, 10},
+                {1.6, 16},
+                {50, 511},
+                {90, 927},
+                {99, 991},
+                {99.9, 1000},
+                {100, 1000},
+        };
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value);
+
+        for (double[] testCase : cases) {
+            long percentile = histogram.percentile(testCase[0]);
+            assertEquals(testCase[0] + "%", (long) testCase[1], percentile);
+        }
+        assertEquals(500.5, histogram.mean(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValuesAreRejected() {
+        new Histogram().record(-1);
+    }
+}
@@ -0,0 +1,77 @@
+package com.mpndrd.httpfiledownload;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import okio.Buffer;
+
+/**
+ * this is a MockWebServer dispatcher that serves the same body for every path, with HEAD, single
+ * byte ranges and If-Range like a static file server. the switches turn parts of it off, to act
+ * like servers that don't support ranges or don't send a length. every request is recorded as
+ * "METHOD range", for the tests to check what was asked for.
+ */
+class RangeDispatcher extends Dispatcher {
+    final byte[] body;
+    volatile String etag = "\"v1\"";
+    volatile boolean acceptRanges = true;
+    volatile boolean sendLength = true;
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    RangeDispatcher(int length) {
+        body = new byte[length];
+        new Random(length).nextBytes(body);
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        String range = request.getHeader("Range");
+        requests.add(request.getMethod() + " " + range);
+
+        MockResponse response = new MockResponse().addHeader("ETag", etag);
+        if (acceptRanges)
+            response.addHeader("Accept-Ranges", "bytes");
+
+        if (request.getMethod().equals("HEAD")) {
+            // MockResponse starts out with the length of its empty body
+            response.removeHeader("Content-Length");
+            if (sendLength)
+                response.addHeader("Content-Length", body.length);
+            return response;
+        }
+
+        String ifRange = request.getHeader("If-Range");
+        if (acceptRanges && range != null && (ifRange == null || ifRange.equals(etag))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            int start = Integer.parseInt(bounds[0]);
+            int end = bounds[1].isEmpty() ? body.length - 1 : Math.min(body.length - 1, Integer.parseInt(bounds[1]));
+            return response.setResponseCode(206)
+                    .addHeader("Content-Range", "bytes " + start + "-" + end + "/" + body.length)
+                    .setBody(new Buffer().write(Arrays.copyOfRange(body, start, end + 1)));
+        }
+        if (!sendLength)
+            return response.setChunkedBody(new Buffer().write(body), 8192);
+        return response.setBody(new Buffer().write(body));
+    }
+
+    /**
+     * @return the requests with the method, e.g. "GET" for the requests without a range.
+     */
+    List<String> requests(String method) {
+        List<String> matching = new ArrayList<String>();
+        synchronized (requests) {
+            for (String request : requests) {
+                if (request.startsWith(method + " "))
+                    matching.add(request);
+            }
+        }
+        return matching;
+    }
+}
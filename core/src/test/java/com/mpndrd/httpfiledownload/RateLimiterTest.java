@@ -0,0 +1,95 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.RateLimiter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RateLimiterTest {
+    private static final long RATE = 1024 * 1024;
+    private static final long CAPACITY = RATE / 10;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // the start of the fake clock, any System.nanoTime() value will do
+    private static final long T0 = 123456789;
+
+    @After
+    public void tearDown() {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void holdsDownloadsToTheRate() {
+        RateLimiter limiter = new RateLimiter(RATE, T0);
+        // the full bucket goes right away, then the reader waits for every byte
+        assertEquals(0, limiter.reserve(CAPACITY, T0));
+        assertEquals(SECOND, limiter.reserve(RATE, T0), 1000);
+        // the debt is paid back after a second, a bit more is a bit more wait
+        assertEquals(SECOND / 2, limiter.reserve(RATE / 2, T0 + SECOND), 1000);
+        // once that's paid back too, reading at the rate doesn't wait
+        long now = T0 + SECOND + SECOND / 2;
+        for (int i = 0; i < 100; i++) {
+            now += SECOND / 100;
+            assertEquals(0, limiter.reserve(RATE / 100, now), 1000);
+        }
+    }
+
+    @Test
+    public void burstsNoMoreThanTheCapacity() {
+        RateLimiter limiter = new RateLimiter(RATE, T0);
+        assertEquals(0, limiter.reserve(CAPACITY, T0));
+        // idle for a minute, the bucket only fills up to its capacity
+        long now = T0 + TimeUnit.MINUTES.toNanos(1);
+        assertEquals(0, limiter.reserve(CAPACITY, now));
+        assertEquals(SECOND / 10, limiter.reserve(CAPACITY, now), 1000);
+    }
+
+    @Test
+    public void aSlowRateStillBurstsAFewReads() {
+        // a tenth of a second is less than 16KB
+        RateLimiter limiter = new RateLimiter(1000, T0);
+        assertEquals(0, limiter.reserve(16 * 1024, T0));
+        assertEquals(SECOND, limiter.reserve(1000, T0), 1000);
+    }
+
+    @Test
+    public void theGlobalLimiterIsSharedByAllFiles() {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .maxBytesPerSecond(RATE)
+                .maxBytesPerSecondPerHost(RATE / 2)
+                .build());
+        RateLimiter request = new RateLimiter(RATE / 4, T0);
+        RateLimiter[] first = DownloadEngine.getRateLimiters("a.example.com", request);
+        RateLimiter[] second = DownloadEngine.getRateLimiters("a.example.com", null);
+        RateLimiter[] other = DownloadEngine.getRateLimiters("b.example.com", null);
+
+        // {global, host, request}
+        assertEquals(3, first.length);
+        assertEquals(2, second.length);
+        assertSame(first[0], second[0]);
+        assertSame(first[0], other[0]);
+        assertSame(first[1], second[1]);
+        assertNotSame(first[1], other[1]);
+        assertSame(request, first[2]);
+    }
+
+    @Test
+    public void twoDownloadsShareTheRate() {
+        RateLimiter global = new RateLimiter(RATE, T0);
+        assertEquals(0, global.reserve(CAPACITY, T0));
+        // each file reads half a second's worth: the second one waits for both
+        assertEquals(SECOND / 2, global.reserve(RATE / 2, T0), 1000);
+        assertEquals(SECOND, global.reserve(RATE / 2, T0), 1000);
+    }
+
+    @Test
+    public void noLimits() {
+        assertNull(DownloadEngine.getRateLimiters("a.example.com", null));
+    }
+}
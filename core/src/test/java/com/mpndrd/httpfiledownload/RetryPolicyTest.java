@@ -0,0 +1,134 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ConsumerException;
+import com.mpndrd.httpfiledownload.DownloadEngine.DigestMismatchException;
+import com.mpndrd.httpfiledownload.DownloadEngine.HttpError;
+import com.mpndrd.httpfiledownload.DownloadEngine.LocalFileException;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * every case is {Retry-After, the delay in milliseconds}.
+     */
+    private static final Object[][] SECONDS = {
+            {null, -1L},
+            {"", -1L},
+            {"0", 0L},
+            {"1", 1000L},
+            {"120", 120000L},
+            {" 30 ", 30000L},
+            {"-5", -1L},
+            {"1.5", -1L},
+            {"soon", -1L},
+            // http dates in the past mean now
+            {"Wed, 21 Oct 2015 07:28:00 GMT", 0L},
+            {"Thu, 01 Jan 1970 00:00:00 GMT", 0L},
+            // not an http date
+            {"2015-10-21T07:28:00Z", -1L},
+    };
+
+    @Test
+    public void parseRetryAfterSeconds() {
+        for (Object[] testCase : SECONDS)
+            assertEquals(String.valueOf(testCase[0]), testCase[1], DownloadEngine.parseRetryAfter((String) testCase[0]));
+    }
+
+    @Test
+    public void parseRetryAfterHttpDate() {
+        for (long seconds : new long[]{10, 60, 3600}) {
+            long before = System.currentTimeMillis();
+            long delay = DownloadEngine.parseRetryAfter(httpDate(before + seconds * 1000));
+            // the date has no milliseconds, and the clock moves on while parsing
+            assertTrue(seconds + "s: " + delay, delay > (seconds - 2) * 1000 && delay <= seconds * 1000);
+        }
+    }
+
+    @Test
+    public void retryDelayHonorsRetryAfter() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 0, 0, 60000);
+        assertEquals(5000, policy.retryDelay(error(503, "5"), 1));
+        assertEquals(0, policy.retryDelay(error(429, "Thu, 01 Jan 1970 00:00:00 GMT"), 1));
+        long delay = policy.retryDelay(error(429, httpDate(System.currentTimeMillis() + 30000)), 1);
+        assertTrue(String.valueOf(delay), delay > 27000 && delay <= 30000);
+        // asking for more than maxRetryAfter, or from a status that isn't retried
+        assertEquals(-1, policy.retryDelay(error(503, "61"), 1));
+        assertEquals(-1, policy.retryDelay(error(404, "5"), 1));
+        // out of attempts
+        assertEquals(-1, policy.retryDelay(error(503, "5"), 3));
+    }
+
+    @Test
+    public void retryDelayBacksOffWithJitter() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 0);
+        IOException error = new IOException("connection reset");
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long limit = Math.min(1000, 100L << (attempt - 1));
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.retryDelay(error, attempt);
+                assertTrue(attempt + ": " + delay, delay >= 0 && delay <= limit);
+            }
+        }
+    }
+
+    @Test
+    public void hostFailures() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 0, 0, 60000);
+        assertTrue(policy.isHostFailure(error(503, null)));
+        assertTrue(policy.isHostFailure(error(429, null)));
+        assertTrue(policy.isHostFailure(new IOException("connection reset")));
+        assertFalse(policy.isHostFailure(null));
+        assertFalse(policy.isHostFailure(error(404, null)));
+        assertFalse(policy.isHostFailure(new ConsumerException(new IOException("consumer"))));
+        assertFalse(policy.isHostFailure(new DigestMismatchException("00000000", "ffffffff")));
+        assertFalse(policy.isHostFailure(new LocalFileException(new IOException("No space left on device"))));
+    }
+
+    @Test
+    public void aFileThatCantBeMovedIntoPlaceIsntAHostFailure() throws Exception {
+        // there's no part file to rename
+        File target = new File(folder.getRoot(), "file");
+        try {
+            DownloadEngine.commit(new File(folder.getRoot(), "file.part"), target, null);
+            fail();
+        } catch (LocalFileException e) {
+            assertFalse(new RetryPolicy(3, 0, 0, 60000).isHostFailure(e));
+        }
+    }
+
+    private static HttpError error(int code, String retryAfter) {
+        Response.Builder response = new Response.Builder()
+                .request(new Request.Builder().url("http://example.com/file").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code);
+        if (retryAfter != null)
+            response.header("Retry-After", retryAfter);
+        return new HttpError(response.build());
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,278 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.DownloadRequest;
+import com.mpndrd.httpfiledownload.DownloadEngine.ResponseBundle;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedDownloadTest {
+    private static final int LENGTH = 100003;
+    private static final long MIN_SEGMENT_SIZE = 10000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final RangeDispatcher dispatcher = new RangeDispatcher(LENGTH);
+    private final MockWebServer server = new MockWebServer();
+    private DownloadRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .segmentsPerFile(4)
+                .minSegmentSize(MIN_SEGMENT_SIZE)
+                .build());
+        server.setDispatcher(dispatcher);
+        server.start();
+        request = new DownloadRequest(server.getUrl("/file").toString(), new File(folder.getRoot(), "file").getPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void splitsIntoRangesWhenTheServerAcceptsThem() throws Exception {
+        download();
+
+        assertEquals(1, dispatcher.requests("HEAD").size());
+        List<String> gets = dispatcher.requests("GET");
+        assertEquals(4, gets.size());
+        for (String get : gets)
+            assertTrue(get, get.startsWith("GET bytes="));
+        assertEquals(LENGTH, requestedBytes(gets));
+    }
+
+    @Test
+    public void singleStreamWithoutAcceptRanges() throws Exception {
+        dispatcher.acceptRanges = false;
+        download();
+        assertEquals(Arrays.asList("GET null"), dispatcher.requests("GET"));
+    }
+
+    @Test
+    public void singleStreamWithoutContentLength() throws Exception {
+        dispatcher.sendLength = false;
+        download();
+        assertEquals(Arrays.asList("GET null"), dispatcher.requests("GET"));
+    }
+
+    @Test
+    public void singleStreamWhenTooSmallToSplit() throws Exception {
+        DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder().minSegmentSize(LENGTH / 2 + 1).build());
+        download();
+        assertEquals(Arrays.asList("GET null"), dispatcher.requests("GET"));
+    }
+
+    @Test
+    public void splitCoversLengthsThatDontDivideEvenly() {
+        long[] lengths = {20000, 29999, 40001, 100003, 1000001};
+        int[] segmentCounts = {1, 2, 3, 4, 7};
+        for (long length : lengths) {
+            for (int segments : segmentCounts) {
+                List<long[]> missing = new ArrayList<long[]>();
+                missing.add(new long[]{0, length});
+                List<long[]> pieces = new ArrayList<long[]>(SegmentedDownload.split(missing, segments, MIN_SEGMENT_SIZE));
+
+                String name = length + " bytes in " + segments;
+                assertTrue(name + ": " + pieces.size() + " pieces", pieces.size() <= segments);
+                long position = 0;
+                for (long[] piece : pieces) {
+                    assertEquals(name, position, piece[0]);
+                    assertTrue(name, piece[1] - piece[0] >= MIN_SEGMENT_SIZE);
+                    position = piece[1];
+                }
+                assertEquals(name, length, position);
+            }
+        }
+    }
+
+    @Test
+    public void splitStaysInsideTheMissingRanges() {
+        List<long[]> missing = new ArrayList<long[]>();
+        missing.add(new long[]{0, 5000});
+        missing.add(new long[]{20000, 64999});
+        missing.add(new long[]{70000, LENGTH});
+
+        List<long[]> pieces = new ArrayList<long[]>(SegmentedDownload.split(missing, 4, MIN_SEGMENT_SIZE));
+        int range = 0;
+        long position = missing.get(0)[0];
+        for (long[] piece : pieces) {
+            if (position == missing.get(range)[1])
+                position = missing.get(++range)[0];
+            assertEquals(position, piece[0]);
+            assertTrue(piece[1] <= missing.get(range)[1]);
+            position = piece[1];
+        }
+        assertEquals(missing.size() - 1, range);
+        assertEquals(LENGTH, position);
+    }
+
+    @Test
+    public void resumesOnlyTheHolesOfTheJournal() throws Exception {
+        long[][] done = {{0, 20000}, {50000, 70000}};
+        DownloadJournal journal = DownloadJournal.open(request);
+        journal.reset(dispatcher.etag, null, LENGTH);
+        RandomAccessFile part = new RandomAccessFile(DownloadEngine.partialFile(request), "rw");
+        try {
+            part.setLength(LENGTH);
+            for (long[] range : done) {
+                part.seek(range[0]);
+                part.write(dispatcher.body, (int) range[0], (int) (range[1] - range[0]));
+                journal.addRange(range[0], range[1]);
+            }
+        } finally {
+            part.close();
+        }
+        journal.save();
+
+        download();
+
+        List<String> gets = dispatcher.requests("GET");
+        assertEquals(LENGTH - 40000, requestedBytes(gets));
+        for (String get : gets) {
+            long[] range = rangeOf(get);
+            for (long[] doneRange : done)
+                assertTrue(get, range[1] <= doneRange[0] || range[0] >= doneRange[1]);
+        }
+        assertTrue(!new File(request.storageLocation + ".journal").exists());
+    }
+
+    @Test
+    public void startsOverWhenTheEtagChanged() throws Exception {
+        DownloadJournal journal = DownloadJournal.open(request);
+        journal.reset("\"v0\"", null, LENGTH);
+        journal.addRange(0, 50000);
+        journal.save();
+        // the bytes of the old version
+        RandomAccessFile part = new RandomAccessFile(DownloadEngine.partialFile(request), "rw");
+        try {
+            part.setLength(LENGTH);
+        } finally {
+            part.close();
+        }
+
+        download();
+
+        assertEquals(LENGTH, requestedBytes(dispatcher.requests("GET")));
+    }
+
+    @Test
+    public void startsOverWhenThePartialFileIsGone() throws Exception {
+        DownloadJournal journal = DownloadJournal.open(request);
+        journal.reset(dispatcher.etag, null, LENGTH);
+        journal.addRange(0, 50000);
+        journal.addRange(60000, 70000);
+        journal.save();
+        // the journal survived, the bytes it points at didn't
+        assertTrue(!DownloadEngine.partialFile(request).exists());
+
+        download();
+
+        assertEquals(LENGTH, requestedBytes(dispatcher.requests("GET")));
+    }
+
+    @Test
+    public void progressOfAResumeTheServerIgnored() throws Exception {
+        // a single stream, and the server sends the whole file whatever the Range says
+        dispatcher.acceptRanges = false;
+        DownloadJournal journal = DownloadJournal.open(request);
+        journal.reset(dispatcher.etag, null, LENGTH);
+        journal.addRange(0, 40000);
+        journal.save();
+        RandomAccessFile part = new RandomAccessFile(DownloadEngine.partialFile(request), "rw");
+        try {
+            part.write(dispatcher.body, 0, 40000);
+        } finally {
+            part.close();
+        }
+
+        final long[] last = new long[2];
+        download(new DownloadEngine.ProgressListener() {
+            @Override
+            public void update(long bytesRead, long contentLength, boolean done) {
+                assertTrue(bytesRead + " of " + contentLength, bytesRead <= contentLength);
+                last[0] = bytesRead;
+                last[1] = contentLength;
+            }
+        });
+
+        assertEquals(Arrays.asList("GET bytes=40000-"), dispatcher.requests("GET"));
+        assertArrayEquals(new long[]{LENGTH, LENGTH}, last);
+    }
+
+    @Test
+    public void segmentsOnABoundedExecutor() throws Exception {
+        // the download takes the only thread, so it has to run its other segments itself
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            DownloadEngine.Configure(DownloadEngine.getConfig().newBuilder().executor(executor).build());
+            DownloadEngine.submit(request, null).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(4, dispatcher.requests("GET").size());
+        assertArrayEquals(dispatcher.body, readFile(new File(request.storageLocation)));
+    }
+
+    private void download() throws Exception {
+        download(null);
+    }
+
+    private void download(DownloadEngine.ProgressListener listener) throws Exception {
+        ResponseBundle result = DownloadEngine.downloadFile(request, listener);
+        if (!result.Status)
+            throw result.Exception;
+        assertArrayEquals(dispatcher.body, readFile(new File(request.storageLocation)));
+        assertTrue(!DownloadEngine.partialFile(request).exists());
+    }
+
+    private static long requestedBytes(List<String> gets) {
+        long total = 0;
+        for (String get : gets) {
+            long[] range = rangeOf(get);
+            total += range[1] - range[0];
+        }
+        return total;
+    }
+
+    /**
+     * @return {start, end} (end exclusive) of a recorded "GET bytes=start-end" request.
+     */
+    private static long[] rangeOf(String get) {
+        String[] bounds = get.substring("GET bytes=".length()).split("-");
+        return new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[1]) + 1};
+    }
+
+    static byte[] readFile(File file) throws Exception {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.mpndrd.httpfiledownload;
+
+import com.mpndrd.httpfiledownload.DownloadEngine.ThrottledProgressListener;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThrottledProgressListenerTest {
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+    // the start of the fake clock, any System.nanoTime() value will do
+    private static final long T0 = 123456789;
+
+    @After
+    public void tearDown() {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+    }
+
+    @Test
+    public void throttlesByTime() {
+        Recorder recorder = recorder(100, 0);
+        recorder.update(0, 1000, false, T0);
+        recorder.update(100, 1000, false, T0 + 50 * MILLISECOND);
+        recorder.update(200, 1000, false, T0 + 100 * MILLISECOND);
+        recorder.update(300, 1000, false, T0 + 199 * MILLISECOND);
+        recorder.update(400, 1000, false, T0 + 200 * MILLISECOND);
+        assertEquals(Arrays.asList(0L, 200L, 400L), recorder.reported);
+    }
+
+    @Test
+    public void throttlesByBytes() {
+        Recorder recorder = recorder(0, 1000);
+        recorder.update(0, 5000, false, T0);
+        recorder.update(500, 5000, false, T0 + MILLISECOND);
+        recorder.update(1000, 5000, false, T0 + 2 * MILLISECOND);
+        recorder.update(1999, 5000, false, T0 + 3 * MILLISECOND);
+        recorder.update(2000, 5000, false, T0 + 4 * MILLISECOND);
+        assertEquals(Arrays.asList(0L, 1000L, 2000L), recorder.reported);
+    }
+
+    @Test
+    public void waitsForTimeAndBytes() {
+        Recorder recorder = recorder(100, 1000);
+        recorder.update(0, 5000, false, T0);
+        // late enough, not enough bytes
+        recorder.update(500, 5000, false, T0 + 150 * MILLISECOND);
+        recorder.update(1000, 5000, false, T0 + 160 * MILLISECOND);
+        // enough bytes, too soon
+        recorder.update(2000, 5000, false, T0 + 200 * MILLISECOND);
+        recorder.update(2100, 5000, false, T0 + 260 * MILLISECOND);
+        assertEquals(Arrays.asList(0L, 1000L, 2100L), recorder.reported);
+    }
+
+    @Test
+    public void theLastUpdateIsAlwaysReported() {
+        Recorder recorder = recorder(TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE / 2);
+        recorder.update(0, 5000, false, T0);
+        recorder.update(4000, 5000, false, T0 + MILLISECOND);
+        recorder.update(5000, 5000, true, T0 + MILLISECOND);
+        assertEquals(Arrays.asList(0L, 5000L), recorder.reported);
+        assertEquals(5000, recorder.contentLength());
+    }
+
+    private static Recorder recorder(long intervalMillis, long minBytes) {
+        DownloadEngine.Configure(new DownloadEngine.Config.Builder()
+                .progressInterval(intervalMillis, TimeUnit.MILLISECONDS)
+                .progressMinBytes(minBytes)
+                .build());
+        return new Recorder();
+    }
+
+    /**
+     * records the bytes of every report.
+     */
+    private static class Recorder extends ThrottledProgressListener {
+        final List<Long> reported = new ArrayList<Long>();
+
+        @Override
+        protected void report() {
+            reported.add(bytesRead());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.mpndrd.httpfiledownload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UnpackTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unzipWithinTheLimits() throws Exception {
+        File directory = new File(folder.getRoot(), "out");
+        DownloadEngine.unzip(zip(3, 1000), directory, 3000, 3);
+        for (int i = 0; i < 3; i++)
+            assertEquals(1000, new File(directory, "entry" + i).length());
+    }
+
+    @Test
+    public void unzipStopsAtMaxSize() throws Exception {
+        // a megabyte of zeros compresses to about a kilobyte
+        assertUnzipFails(zip(1, 1024 * 1024), 1024 * 1024 - 1, 10, "unpacked size over the limit");
+        // the entries add up
+        assertUnzipFails(zip(4, 1000), 3999, 10, "unpacked size over the limit");
+    }
+
+    @Test
+    public void unzipStopsAtMaxEntries() throws Exception {
+        assertUnzipFails(zip(11, 1), Long.MAX_VALUE, 10, "zip has more than 10 entries");
+    }
+
+    @Test
+    public void commitReplacesADirectory() throws Exception {
+        File target = folder.newFolder("target");
+        new FileOutputStream(new File(target, "old")).close();
+        File part = folder.newFolder("target.part");
+        write(new File(part, "new"), new byte[]{1, 2, 3});
+        // left over from a crash between the renames
+        folder.newFolder("target.old");
+
+        DownloadEngine.commit(part, target, null);
+
+        assertFalse(part.exists());
+        assertFalse(new File(target, "old").exists());
+        assertArrayEquals(new byte[]{1, 2, 3}, SegmentedDownloadTest.readFile(new File(target, "new")));
+        assertFalse(new File(folder.getRoot(), "target.old").exists());
+    }
+
+    @Test
+    public void commitReplacesAFile() throws Exception {
+        File target = folder.newFile("target");
+        write(target, new byte[]{9});
+        File part = folder.newFile("target.part");
+        write(part, new byte[]{1, 2});
+
+        DownloadEngine.commit(part, target, null);
+
+        assertFalse(part.exists());
+        assertArrayEquals(new byte[]{1, 2}, SegmentedDownloadTest.readFile(target));
+    }
+
+    @Test
+    public void commitUnderEverySyncPolicy() throws Exception {
+        int[] policies = {DownloadEngine.Config.SYNC_NONE, DownloadEngine.Config.SYNC_FILE, DownloadEngine.Config.SYNC_BATCH};
+        DownloadEngine.SyncBatch syncBatch = new DownloadEngine.SyncBatch();
+        try {
+            for (int policy : policies) {
+                DownloadEngine.Configure(new DownloadEngine.Config.Builder().syncPolicy(policy).build());
+                // a file and a directory, in a batch and on their own
+                for (int i = 0; i < 4; i++) {
+                    File target = new File(folder.getRoot(), policy + "-" + i);
+                    File part = new File(target.getPath() + ".part");
+                    if (i % 2 == 0) {
+                        write(part, new byte[]{(byte) i});
+                    } else {
+                        assertTrue(part.mkdir());
+                        write(new File(part, "entry"), new byte[]{(byte) i});
+                    }
+                    DownloadEngine.commit(part, target, i < 2 ? syncBatch : null);
+                    assertFalse(part.exists());
+                    assertTrue(target.exists());
+                }
+            }
+            syncBatch.sync();
+            // the batch is empty once it's synced
+            syncBatch.sync();
+        } finally {
+            DownloadEngine.Configure(new DownloadEngine.Config.Builder().build());
+        }
+    }
+
+    private void assertUnzipFails(Buffer zip, long maxSize, int maxEntries, String message) {
+        File directory = new File(folder.getRoot(), "bomb" + System.nanoTime());
+        try {
+            DownloadEngine.unzip(zip, directory, maxSize, maxEntries);
+            fail("unzipped " + directory);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    /**
+     * @return a zip of entries files of zeros.
+     */
+    private static Buffer zip(int entries, int size) throws IOException {
+        Buffer buffer = new Buffer();
+        ZipOutputStream zip = new ZipOutputStream(buffer.outputStream());
+        for (int i = 0; i < entries; i++) {
+            zip.putNextEntry(new ZipEntry("entry" + i));
+            zip.write(new byte[size]);
+            zip.closeEntry();
+        }
+        zip.close();
+        return buffer;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
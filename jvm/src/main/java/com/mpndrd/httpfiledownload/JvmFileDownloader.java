@@ -0,0 +1,143 @@
+package com.mpndrd.httpfiledownload;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>
+ * this class is the plain jvm counterpart of HttpFileDownloader: where HttpFileDownloader wraps
+ * DownloadEngine in an AsyncTask, this class wraps it in CompletableFutures, for backends and tests
+ * that don't run on android.
+ * </p>
+ * <p>
+ * on java 21 and up, after useVirtualThreads(), every download runs on its own virtual thread, so a
+ * single process can keep thousands of blocking downloads in flight without a thread pool that
+ * size. otherwise downloads use Config.executor, or the built-in thread pool. the scheduler's limits
+ * still apply, to go that wide raise Config.maxConcurrentDownloads, maxDownloadsPerHost and
+ * maxQueuedDownloads (submitting blocks while the queue is full), and the connection pool's
+ * maxIdleConnections.
+ * </p>
+ */
+public class JvmFileDownloader extends DownloadEngine {
+    static {
+        setPlatform(new JvmPlatform());
+    }
+
+    /**
+     * installs an executor that starts a virtual thread for every download as Config.executor. the
+     * rest of the configuration is kept.
+     *
+     * @return false if the jvm doesn't have virtual threads, the configuration isn't changed then.
+     */
+    public static boolean useVirtualThreads() {
+        Executor executor = virtualThreadExecutor();
+        if (executor == null)
+            return false;
+        synchronized (DownloadEngine.class) {
+            Configure(getConfig().newBuilder().executor(executor).build());
+        }
+        return true;
+    }
+
+    /**
+     * downloads a file.
+     *
+     * @param downloadRequest - the file to download
+     * @param listener        - gets the progress of the file, from the download thread. can be null
+     * @return a future that completes with the request when the file is downloaded, or with the
+     * error from the last attempt. canceling it stops the retries.
+     */
+    public static CompletableFuture<DownloadRequest> download(DownloadRequest downloadRequest, ProgressListener listener) {
+        return download(downloadRequest, listener, null);
+    }
+
+    private static CompletableFuture<DownloadRequest> download(DownloadRequest downloadRequest, ProgressListener listener,
+                                                               SyncBatch syncBatch) {
+        final CompletableFuture<DownloadRequest> result = new CompletableFuture<DownloadRequest>();
+        final DownloadFuture future;
+        try {
+            future = submit(downloadRequest, listener, syncBatch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        future.addCallback(new DownloadCallback() {
+            @Override
+            public void onFinished(DownloadRequest downloadRequest, Exception error) {
+                if (error == null)
+                    result.complete(downloadRequest);
+                else
+                    result.completeExceptionally(error);
+            }
+        });
+        result.whenComplete(new BiConsumer<DownloadRequest, Throwable>() {
+            @Override
+            public void accept(DownloadRequest downloadRequest, Throwable error) {
+                if (result.isCancelled())
+                    future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * downloads all the files at once.
+     *
+     * @return a future that completes when all files are done (and synced, if Config.syncPolicy is
+     * SYNC_BATCH). it completes exceptionally if any of them failed, the others are still downloaded.
+     */
+    public static CompletableFuture<Void> downloadAll(DownloadRequest... downloadRequests) {
+        final SyncBatch syncBatch = new SyncBatch();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[downloadRequests.length];
+        for (int i = 0; i < downloadRequests.length; i++)
+            futures[i] = download(downloadRequests[i], null, syncBatch);
+
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        CompletableFuture.allOf(futures).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable error) {
+                try {
+                    syncBatch.sync();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+                if (error != null)
+                    result.completeExceptionally(error);
+                else
+                    result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return an executor that starts a virtual thread for every task, or null if the jvm doesn't
+     * have virtual threads. it's looked up by reflection so this class still builds and runs on
+     * java 8.
+     */
+    static Executor virtualThreadExecutor() {
+        try {
+            // Thread.ofVirtual().name("HttpFileDownloader virtual #", 1).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "HttpFileDownloader virtual #", 1L);
+            Method factory = builderClass.getMethod("factory");
+            final ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+            return new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    threadFactory.newThread(command).start();
+                }
+            };
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.mpndrd.httpfiledownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * this is the Platform on a plain jvm: hard links are made, and directories synced, with
+ * java.nio.file, which core can't use because android only has it from 8.0.
+ */
+class JvmPlatform extends Platform {
+    @Override
+    protected boolean link(File from, File to) {
+        try {
+            Files.createLink(to.toPath(), from.toPath());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void syncDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}